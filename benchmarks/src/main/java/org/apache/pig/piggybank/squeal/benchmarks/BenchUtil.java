@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.pig.impl.io.NullableIntWritable;
+import org.apache.pig.impl.io.NullableLongWritable;
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.piggybank.squeal.backend.storm.io.WritableKryoSerializer;
+import org.apache.pig.piggybank.squeal.flexy.executors.FlexyTracer;
+
+import storm.trident.operation.CombinerAggregator;
+import storm.trident.operation.TridentCollector;
+import storm.trident.tuple.TridentTuple;
+import backtype.storm.Config;
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichSpout;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+
+/**
+ * Shared pieces for the benchmarks: a word count workload and a Storm
+ * configuration registered the way FlexyMain does it.
+ */
+public class BenchUtil {
+	public static final int VOCABULARY = 100000;
+
+	/**
+	 * Word indexes with a Zipf-like skew, the way real keys tend to look.
+	 */
+	public static int[] skewedKeys(int n, long seed) {
+		Random r = new Random(seed);
+		int[] ret = new int[n];
+		for (int i = 0; i < n; i++) {
+			// Squaring a uniform draw piles up on the small ids.
+			double d = r.nextDouble();
+			ret[i] = (int) (d * d * VOCABULARY);
+		}
+		return ret;
+	}
+
+	public static NullableText word(int i) {
+		return new NullableText("word" + i);
+	}
+
+	public static Config conf() {
+		Config conf = new Config();
+		conf.putAll(Utils.readDefaultConfig());
+		conf.remove(Config.TOPOLOGY_KRYO_REGISTER);
+
+		conf.registerSerialization(NullableText.class, WritableKryoSerializer.class);
+		conf.registerSerialization(NullableIntWritable.class, WritableKryoSerializer.class);
+		conf.registerSerialization(NullableLongWritable.class, WritableKryoSerializer.class);
+		conf.registerSerialization(NullableTuple.class, WritableKryoSerializer.class);
+		conf.registerSerialization(FlexyTracer.class, FlexyTracer.TracerKryoSerializer.class);
+		return conf;
+	}
+
+	public static void setBoolean(Map conf, String key, boolean v) {
+		conf.put(key, v ? "true" : "false");
+	}
+
+	public static class Count implements CombinerAggregator<Long> {
+		@Override
+		public Long init(TridentTuple tuple) {
+			return 1L;
+		}
+
+		@Override
+		public Long combine(Long val1, Long val2) {
+			return val1 + val2;
+		}
+
+		@Override
+		public Long zero() {
+			return 0L;
+		}
+	}
+
+	public static class Sum implements CombinerAggregator<Long> {
+		@Override
+		public Long init(TridentTuple tuple) {
+			return (Long) tuple.getValue(0);
+		}
+
+		@Override
+		public Long combine(Long val1, Long val2) {
+			return val1 + val2;
+		}
+
+		@Override
+		public Long zero() {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Emits skewed words forever, one per call.
+	 */
+	public static class WordSpout extends BaseRichSpout {
+		private SpoutOutputCollector collector;
+		private int[] keys;
+		private NullableText[] words;
+		private int pos = 0;
+		private long msgId = 0;
+
+		@Override
+		public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
+			this.collector = collector;
+			keys = skewedKeys(1 << 20, 42);
+			words = new NullableText[VOCABULARY];
+			for (int i = 0; i < VOCABULARY; i++) {
+				words[i] = word(i);
+			}
+		}
+
+		@Override
+		public void nextTuple() {
+			collector.emit(new Values(words[keys[pos]]), msgId++);
+			pos = (pos + 1) & (keys.length - 1);
+		}
+
+		@Override
+		public void declareOutputFields(OutputFieldsDeclarer declarer) {
+			declarer.declare(new Fields("word"));
+		}
+	}
+
+	public static class DiscardCollector implements TridentCollector {
+		public long emitted = 0;
+
+		@Override
+		public void emit(List<Object> values) {
+			emitted++;
+		}
+
+		@Override
+		public void reportError(Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+}
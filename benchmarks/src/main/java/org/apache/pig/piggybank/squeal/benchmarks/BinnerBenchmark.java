@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.impl.io.NullableLongWritable;
+import org.apache.pig.piggybank.squeal.binner.Binner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+import backtype.storm.Config;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.topology.BasicOutputCollector;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.topology.base.BaseBasicBolt;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * Bin encoding and decoding for a fields grouping over eight tasks.  The
+ * encode side is Binner.emit plus the flush, the decode side walks the
+ * resulting bins the way PipelineExecutor does.  Scores are per tuple.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class BinnerBenchmark {
+	static final int BATCH = 10000;
+	static final Fields FIELDS = new Fields("word", "binnedValues");
+
+	@Param({"false", "true"})
+	public boolean columnar;
+
+	@Param({"none", "deflate", "snappy"})
+	public String codec;
+
+	@Param({"false", "true"})
+	public boolean async;
+
+	Binner binner;
+	Binner.BinDecoder decoder;
+	TridentTuple[] tuples;
+	List<byte[]> bins = new ArrayList<byte[]>();
+	boolean capture = true;
+	long emittedBytes = 0;
+
+	public static class BinBolt extends BaseBasicBolt {
+		@Override
+		public void execute(Tuple input, BasicOutputCollector collector) {
+		}
+
+		@Override
+		public void declareOutputFields(OutputFieldsDeclarer declarer) {
+			declarer.declareStream("s", FIELDS);
+		}
+	}
+
+	class Capture implements IOutputCollector {
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			byte[] bin = (byte[]) tuple.get(1);
+			emittedBytes += bin.length;
+			if (capture) {
+				bins.add(bin);
+			}
+			return null;
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			emit(streamId, anchors, tuple);
+		}
+
+		@Override
+		public void ack(Tuple input) {
+		}
+
+		@Override
+		public void fail(Tuple input) {
+		}
+
+		@Override
+		public void reportError(Throwable error) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		Config conf = BenchUtil.conf();
+		BenchUtil.setBoolean(conf, Binner.COLUMNAR_CONF, columnar);
+		conf.put(Binner.CODEC_CONF, codec);
+		BenchUtil.setBoolean(conf, Binner.ASYNC_CONF, async);
+
+		TopologyBuilder builder = new TopologyBuilder();
+		builder.setBolt("src", new BinBolt());
+		builder.setBolt("sink", new BinBolt(), 8).fieldsGrouping("src", "s", new Fields("word"));
+		LocalTopology local = new LocalTopology(builder.createTopology(), conf);
+
+		binner = new Binner();
+		binner.prepare(conf, local.context(local.tasks("src").get(0)),
+				new OutputCollector(new Capture()), "s");
+		decoder = new Binner.BinDecoder(conf);
+
+		int[] ids = BenchUtil.skewedKeys(BATCH, 3);
+		tuples = new TridentTuple[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			tuples[i] = TridentTupleView.createFreshTuple(FIELDS,
+					BenchUtil.word(ids[i]), new NullableLongWritable(i));
+		}
+
+		// Keep one batch of bins around for the decode side.
+		encode();
+		capture = false;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long encode() throws IOException {
+		for (int i = 0; i < BATCH; i++) {
+			binner.emit(tuples[i], null);
+		}
+		binner.flush(null);
+		return emittedBytes;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int decode() {
+		int n = 0;
+		for (byte[] bin : bins) {
+			decoder.reset(bin);
+			while (decoder.next() != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import backtype.storm.generated.Bolt;
+import backtype.storm.generated.ComponentCommon;
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.Grouping;
+import backtype.storm.generated.SpoutSpec;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.generated.StreamInfo;
+import backtype.storm.task.IBolt;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.utils.Utils;
+import clojure.lang.Atom;
+
+/**
+ * Runs the bolts of a topology in the calling thread.  Every component gets
+ * parallelism hint tasks, emits are routed the way Storm would and queued
+ * until drain() is called.  Only all, fields and shuffle groupings are
+ * supported, which is all Flexy uses.
+ */
+public class LocalTopology {
+	private StormTopology topology;
+	private Map conf;
+	Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+	Map<String, List<Integer>> componentToTasks = new HashMap<String, List<Integer>>();
+	Map<String, Map<String, Fields>> streamFields = new HashMap<String, Map<String, Fields>>();
+	List<Integer> allTasks = new ArrayList<Integer>();
+	Map<Integer, TopologyContext> contexts = new HashMap<Integer, TopologyContext>();
+	Map<Integer, IBolt> bolts = new HashMap<Integer, IBolt>();
+	ArrayDeque<Delivery> pending = new ArrayDeque<Delivery>();
+	Random r = new Random(0);
+
+	// Bytes emitted as byte[] values, i.e. bins.
+	long binBytes = 0;
+	long failed = 0;
+
+	static class Delivery {
+		int task;
+		Tuple tuple;
+
+		Delivery(int task, Tuple tuple) {
+			this.task = task;
+			this.tuple = tuple;
+		}
+	}
+
+	class Collector implements IOutputCollector {
+		int task;
+
+		Collector(int task) {
+			this.task = task;
+		}
+
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			return send(task, streamId, tuple);
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			pending.addLast(new Delivery(taskId, new TupleImpl(context(task), tuple, task, streamId)));
+		}
+
+		@Override
+		public void ack(Tuple input) {
+		}
+
+		@Override
+		public void fail(Tuple input) {
+			failed++;
+		}
+
+		@Override
+		public void reportError(Throwable error) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	public LocalTopology(StormTopology topology, Map conf) {
+		this.topology = topology;
+		this.conf = conf;
+
+		// Assign tasks in name order like Nimbus does.
+		TreeMap<String, ComponentCommon> components = new TreeMap<String, ComponentCommon>();
+		for (Entry<String, SpoutSpec> ent : topology.get_spouts().entrySet()) {
+			components.put(ent.getKey(), ent.getValue().get_common());
+		}
+		for (Entry<String, Bolt> ent : topology.get_bolts().entrySet()) {
+			components.put(ent.getKey(), ent.getValue().get_common());
+		}
+
+		int task = 1;
+		for (Entry<String, ComponentCommon> ent : components.entrySet()) {
+			ComponentCommon common = ent.getValue();
+			int n = common.is_set_parallelism_hint() ? common.get_parallelism_hint() : 1;
+			List<Integer> tasks = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				tasks.add(task);
+				taskToComponent.put(task, ent.getKey());
+				allTasks.add(task);
+				task++;
+			}
+			componentToTasks.put(ent.getKey(), tasks);
+
+			Map<String, Fields> streams = new HashMap<String, Fields>();
+			for (Entry<String, StreamInfo> s : common.get_streams().entrySet()) {
+				streams.put(s.getKey(), new Fields(s.getValue().get_output_fields()));
+			}
+			streamFields.put(ent.getKey(), streams);
+		}
+	}
+
+	public TopologyContext context(int taskId) {
+		TopologyContext ctx = contexts.get(taskId);
+		if (ctx == null) {
+			ctx = new TopologyContext(topology, conf, taskToComponent, componentToTasks, streamFields,
+					"bench", null, null, taskId, 6700, allTasks,
+					new HashMap<String, Object>(), new HashMap<String, Object>(),
+					new HashMap<String, Object>(), new HashMap(), new Atom(false));
+			contexts.put(taskId, ctx);
+		}
+		return ctx;
+	}
+
+	public List<Integer> tasks(String component) {
+		return componentToTasks.get(component);
+	}
+
+	public IBolt bolt(int taskId) {
+		return bolts.get(taskId);
+	}
+
+	/**
+	 * Deserialize and prepare a copy of every bolt for each of its tasks.
+	 */
+	public void prepare() {
+		for (Entry<String, Bolt> ent : topology.get_bolts().entrySet()) {
+			byte[] ser = ent.getValue().get_bolt_object().get_serialized_java();
+			for (int task : componentToTasks.get(ent.getKey())) {
+				IBolt b = (IBolt) Utils.deserialize(ser);
+				b.prepare(conf, context(task), collector(task));
+				bolts.put(task, b);
+			}
+		}
+	}
+
+	public OutputCollector collector(int task) {
+		return new OutputCollector(new Collector(task));
+	}
+
+	public List<Integer> send(int srcTask, String stream, List<Object> values) {
+		String src = taskToComponent.get(srcTask);
+		GlobalStreamId id = new GlobalStreamId(src, stream);
+
+		List<Integer> targets = new ArrayList<Integer>();
+		for (Entry<String, Bolt> ent : topology.get_bolts().entrySet()) {
+			Grouping g = ent.getValue().get_common().get_inputs().get(id);
+			if (g == null) {
+				continue;
+			}
+
+			List<Integer> tasks = componentToTasks.get(ent.getKey());
+			if (g.is_set_all()) {
+				targets.addAll(tasks);
+			} else if (g.is_set_fields()) {
+				List<Object> sel = streamFields.get(src).get(stream).select(new Fields(g.get_fields()), values);
+				// Storm uses a floored mod.
+				int n = tasks.size();
+				targets.add(tasks.get(((sel.hashCode() % n) + n) % n));
+			} else if (g.is_set_shuffle() || g.is_set_local_or_shuffle()) {
+				targets.add(tasks.get(r.nextInt(tasks.size())));
+			} else {
+				throw new RuntimeException("Unsupported grouping: " + g);
+			}
+		}
+
+		for (Object v : values) {
+			if (v instanceof byte[]) {
+				binBytes += ((byte[]) v).length;
+			}
+		}
+
+		for (int target : targets) {
+			pending.addLast(new Delivery(target, new TupleImpl(context(srcTask), values, srcTask, stream)));
+		}
+		return targets;
+	}
+
+	/**
+	 * Execute everything queued, including anything emitted along the way.
+	 */
+	public void drain() {
+		while (pending.size() > 0) {
+			Delivery d = pending.pollFirst();
+			bolts.get(d.task).execute(d.tuple);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.piggybank.squeal.binner.Binner;
+import org.apache.pig.piggybank.squeal.flexy.FlexyTopology;
+import org.apache.pig.piggybank.squeal.flexy.executors.PipelineExecutor;
+import org.apache.pig.piggybank.squeal.flexy.executors.Stage0Executor;
+import org.apache.pig.piggybank.squeal.flexy.model.FStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.testing.MemoryMapState;
+import backtype.storm.Config;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+
+/**
+ * One full Flexy batch of a word count: the master's start tuple, the spout
+ * bolt, binning to the group by, both aggregation stages and the commit,
+ * all run in one thread.  The score is per batch; divide by batchSize for
+ * per tuple costs, and run with -prof gc for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+	@Param({"1000", "10000"})
+	public int batchSize;
+
+	@Param({"false", "true"})
+	public boolean columnar;
+
+	@Param({"none", "snappy"})
+	public String codec;
+
+	@Param({"guava", "slab"})
+	public String store;
+
+	LocalTopology local;
+	int masterTask;
+	long batch = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		FlexyTopology ft = new FlexyTopology();
+		FStream words = ft.newStream("words", new BenchUtil.WordSpout());
+		words.groupBy(new Fields("word"), new Fields("word"),
+				new BenchUtil.Count(), new BenchUtil.Sum(), new BenchUtil.Sum(),
+				new MemoryMapState.Factory(), new Fields("count"))
+			.parallelismHint(4);
+		StormTopology topology = ft.build();
+
+		Config conf = BenchUtil.conf();
+		conf.put(PipelineExecutor.MAX_BATCH_SIZE_CONF, batchSize);
+		BenchUtil.setBoolean(conf, Binner.COLUMNAR_CONF, columnar);
+		conf.put(Binner.CODEC_CONF, codec);
+		conf.put(Stage0Executor.STORE_CONF, store);
+
+		local = new LocalTopology(topology, conf);
+		local.prepare();
+		masterTask = local.tasks("FlexyMaster").get(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (local.failed > 0) {
+			throw new RuntimeException(local.failed + " tuples failed");
+		}
+	}
+
+	@Benchmark
+	public long batch() {
+		// Start ids are even, their commits are the next odd id.
+		batch += 2;
+		local.send(masterTask, "start", new Values(batch, false, batch - 1, batchSize));
+		local.drain();
+		local.send(masterTask, "commit", new Values(batch + 1, true));
+		local.drain();
+		return local.binBytes;
+	}
+}
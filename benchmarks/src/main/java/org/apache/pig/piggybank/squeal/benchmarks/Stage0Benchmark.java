@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.piggybank.squeal.flexy.executors.Stage0Executor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+import backtype.storm.Config;
+import backtype.storm.tuple.Fields;
+
+/**
+ * The map side combiner on its own: a batch of skewed keys followed by the
+ * end of batch flush.  Scores are per tuple.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class Stage0Benchmark {
+	static final int BATCH = 10000;
+
+	@Param({"guava", "slab"})
+	public String store;
+
+	@Param({"1000", "100000"})
+	public int cacheSize;
+
+	Stage0Executor<Long> exec;
+	BenchUtil.DiscardCollector collector = new BenchUtil.DiscardCollector();
+	NullableText[] keys;
+	TridentTuple[] tuples;
+	int pos = 0;
+
+	@Setup
+	public void setup() {
+		Config conf = BenchUtil.conf();
+		conf.put(Stage0Executor.STORE_CONF, store);
+		conf.put(Stage0Executor.CACHE_SIZE_CONF, cacheSize);
+		conf.put(Stage0Executor.FLUSH_INTERVAL_CONF, 0);
+
+		exec = new Stage0Executor<Long>(new BenchUtil.Count());
+		exec.prepare(conf, null, collector);
+
+		// Build the inputs up front so only the combiner is measured.
+		int[] ids = BenchUtil.skewedKeys(BATCH * 16, 7);
+		keys = new NullableText[ids.length];
+		tuples = new TridentTuple[ids.length];
+		Fields f = new Fields("word");
+		for (int i = 0; i < ids.length; i++) {
+			keys[i] = BenchUtil.word(ids[i]);
+			tuples[i] = TridentTupleView.createFreshTuple(f, keys[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long batch() {
+		for (int i = 0; i < BATCH; i++) {
+			exec.execute(keys[pos], tuples[pos]);
+			pos = (pos + 1) % keys.length;
+		}
+		exec.flush();
+		return collector.emitted;
+	}
+}
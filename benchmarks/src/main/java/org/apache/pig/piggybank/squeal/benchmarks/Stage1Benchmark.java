@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.piggybank.squeal.flexy.executors.Stage1Executor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import storm.trident.testing.MemoryMapState;
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+import backtype.storm.Config;
+import backtype.storm.topology.BasicOutputCollector;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.topology.base.BaseBasicBolt;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * The reduce side of a group by on its own: a batch of partial counts,
+ * the flush that folds them into the state's values and the commit.
+ * Scores are per tuple.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class Stage1Benchmark {
+	static final int BATCH = 10000;
+
+	@Param({"false", "true"})
+	public boolean asyncPrefetch;
+
+	@Param({"false", "true"})
+	public boolean asyncCommit;
+
+	Stage1Executor<Long> exec;
+	BenchUtil.DiscardCollector collector = new BenchUtil.DiscardCollector();
+	NullableText[] keys;
+	TridentTuple[] tuples;
+	int pos = 0;
+	long txid = 0;
+
+	/**
+	 * Stands in for the bolt so the executor has a task to partition on.
+	 */
+	public static class NopBolt extends BaseBasicBolt {
+		@Override
+		public void execute(Tuple input, BasicOutputCollector collector) {
+		}
+
+		@Override
+		public void declareOutputFields(OutputFieldsDeclarer declarer) {
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Config conf = BenchUtil.conf();
+		BenchUtil.setBoolean(conf, Stage1Executor.PREFETCH_ASYNC_CONF, asyncPrefetch);
+		BenchUtil.setBoolean(conf, Stage1Executor.ASYNC_COMMIT_CONF, asyncCommit);
+		conf.put(Stage1Executor.FLUSH_INTERVAL_CONF, 0);
+
+		TopologyBuilder builder = new TopologyBuilder();
+		builder.setBolt("stage1", new NopBolt());
+		LocalTopology local = new LocalTopology(builder.createTopology(), conf);
+
+		exec = new Stage1Executor<Long>(new BenchUtil.Sum(), new BenchUtil.Sum(),
+				new MemoryMapState.Factory());
+		exec.prepare(conf, local.context(local.tasks("stage1").get(0)), collector);
+
+		int[] ids = BenchUtil.skewedKeys(BATCH * 16, 11);
+		keys = new NullableText[ids.length];
+		tuples = new TridentTuple[ids.length];
+		Fields f = new Fields("stage1_vl");
+		for (int i = 0; i < ids.length; i++) {
+			keys[i] = BenchUtil.word(ids[i]);
+			tuples[i] = TridentTupleView.createFreshTuple(f, (Object) Long.valueOf(i % 5 + 1));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long batch() {
+		for (int i = 0; i < BATCH; i++) {
+			exec.execute(keys[pos], tuples[pos]);
+			pos = (pos + 1) % keys.length;
+		}
+		exec.flush();
+		exec.commit(++txid);
+		return collector.emitted;
+	}
+}
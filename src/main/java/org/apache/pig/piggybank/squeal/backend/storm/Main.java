@@ -35,20 +35,12 @@ import java.util.UUID;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Writable;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
 import org.apache.pig.impl.PigContext;
-import org.apache.pig.impl.io.NullableBag;
-import org.apache.pig.impl.io.NullableBooleanWritable;
-import org.apache.pig.impl.io.NullableBytesWritable;
-import org.apache.pig.impl.io.NullableDoubleWritable;
-import org.apache.pig.impl.io.NullableFloatWritable;
-import org.apache.pig.impl.io.NullableIntWritable;
-import org.apache.pig.impl.io.NullableLongWritable;
-import org.apache.pig.impl.io.NullableText;
-import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.plan.DependencyOrderWalker;
 import org.apache.pig.impl.plan.VisitorException;
 import org.apache.pig.impl.util.MultiMap;
@@ -65,7 +57,7 @@ import org.apache.pig.piggybank.squeal.backend.storm.oper.TriWindowCombinePersis
 import org.apache.pig.piggybank.squeal.backend.storm.plans.SOpPlanVisitor;
 import org.apache.pig.piggybank.squeal.backend.storm.plans.SOperPlan;
 import org.apache.pig.piggybank.squeal.backend.storm.plans.StormOper;
-import org.apache.pig.piggybank.squeal.backend.storm.state.CombineTupleWritable;
+import org.apache.pig.piggybank.squeal.backend.storm.state.TypeRegistry;
 import org.apache.pig.piggybank.squeal.metrics.MetricsTransportFactory;
 import org.apache.pig.piggybank.squeal.metrics.TransportMeasureHelper;
 import org.yaml.snakeyaml.Yaml;
@@ -550,22 +542,11 @@ public class Main {
 	public void registerSerializer(Config conf) {
 //		conf.registerSerialization(Writable.class, WritableKryoSerializer.class);
 		
-		// PigTypes
-		conf.registerSerialization(NullableBooleanWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableBytesWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableText.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableFloatWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableDoubleWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableIntWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableLongWritable.class, WritableKryoSerializer.class);
-		conf.registerSerialization(NullableBag.class, WritableKryoSerializer.class);
-	    conf.registerSerialization(NullableTuple.class, WritableKryoSerializer.class);
-		
-	    // Squeal Types
-	    conf.registerSerialization(CombineWrapper.CombineWrapperState.class, WritableKryoSerializer.class);
-	    conf.registerSerialization(TriBasicPersist.TriBasicPersistState.class, WritableKryoSerializer.class);
-	    conf.registerSerialization(TriWindowCombinePersist.WindowCombineState.class, WritableKryoSerializer.class);
-	    conf.registerSerialization(CombineTupleWritable.class, WritableKryoSerializer.class);
+		// Pig and Squeal types, in TypeRegistry order so every worker
+		// registers them under the same Kryo ids.
+		for (Class<? extends Writable> c : TypeRegistry.getClasses()) {
+			conf.registerSerialization(c, WritableKryoSerializer.class);
+		}
 	}
 	
 	public void passPigContextProperties(Config conf) {
@@ -18,30 +18,86 @@
 
 package org.apache.pig.piggybank.squeal.backend.storm.io;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.apache.hadoop.io.Writable;
-import org.apache.pig.piggybank.squeal.backend.storm.state.PigSerializer;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+/**
+ * Writes a Writable straight into the Kryo stream.  Each class is
+ * registered on its own, so Kryo's registration id already says what to
+ * instantiate and nothing but the Writable's own fields goes out.
+ */
 public class WritableKryoSerializer extends Serializer<Writable> {
 	
-	PigSerializer ps = new PigSerializer();
+	// Kryo instances aren't shared between threads, so neither are these;
+	// they are pointed at the current stream on each call.
+	private final ToOutput toOutput = new ToOutput();
+	private final DataOutputStream dout = new DataOutputStream(toOutput);
+	private final FromInput fromInput = new FromInput();
+	private final DataInputStream din = new DataInputStream(fromInput);
+	
+	static class ToOutput extends OutputStream {
+		Output output;
+		
+		@Override
+		public void write(int b) {
+			output.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			output.write(b, off, len);
+		}
+	}
+	
+	static class FromInput extends InputStream {
+		Input input;
+		
+		@Override
+		public int read() {
+			return input.read();
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return input.read(b, off, len);
+		}
+	}
 
 	@Override
 	public Writable read(Kryo kryo, Input input, Class<Writable> w) {
-		int len = input.readInt();
-		byte[] buf = input.readBytes(len);
-		return (Writable) ps.deserialize(buf);
+		Writable ret = kryo.newInstance(w);
+		fromInput.input = input;
+		try {
+			ret.readFields(din);
+		} catch (IOException e) {
+			throw new KryoException(e);
+		} finally {
+			fromInput.input = null;
+		}
+		return ret;
 	}
 
 	@Override
 	public void write(Kryo kryo, Output output, Writable w) {
-		byte[] buf = ps.serialize(w);
-		output.writeInt(buf.length);
-		output.write(buf);
+		toOutput.output = output;
+		try {
+			w.write(dout);
+		} catch (IOException e) {
+			throw new KryoException(e);
+		} finally {
+			toOutput.output = null;
+		}
 	}
 
 }
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.backend.storm.oper;
+
+import java.util.List;
+
+import storm.trident.operation.Function;
+import storm.trident.operation.TridentCollector;
+import storm.trident.tuple.TridentTuple;
+
+/**
+ * A function that can take a block of tuples per call, so per call work
+ * is paid once per block.  The Flexy executors gather blocks for these
+ * functions; anything else still sees one tuple at a time.
+ */
+public interface BatchFunction extends Function {
+	public interface BatchCollector extends TridentCollector {
+		/**
+		 * The emits that follow belong to the i-th tuple of the block.
+		 */
+		void startInput(int i);
+	}
+
+	/**
+	 * Process the tuples in order, calling startInput before each.
+	 */
+	void executeBatch(List<TridentTuple> tuples, BatchCollector collector);
+}
@@ -32,7 +32,7 @@ import org.apache.pig.impl.util.Pair;
 import storm.trident.operation.CombinerAggregator;
 import storm.trident.tuple.TridentTuple;
 
-public class CombineWrapper implements CombinerAggregator<MapIdxWritable> {
+public class CombineWrapper implements MutableCombinerAggregator<MapIdxWritable> {
 	private CombinerAggregator<Writable> agg;
 	private boolean trackLast;
 	private boolean identityInit;
@@ -92,6 +92,24 @@ public class CombineWrapper implements CombinerAggregator<MapIdxWritable> {
 		return ret;
 	}
 	
+	@Override
+	public MapIdxWritable combineInto(MapIdxWritable acc, MapIdxWritable val) {
+		// LAST holds on to the old CUR, so that one has to be copied.
+		if (trackLast || !(agg instanceof MutableCombinerAggregator)) {
+			return combine(acc, val);
+		}
+		
+		Writable combined = ((MutableCombinerAggregator<Writable>) agg).combineInto(
+				getDefault(acc, CUR), getDefault(val, CUR));
+		if (combined == null) {
+			throw new RuntimeException("null combine: " + acc + " " + val);
+		}
+		acc.remove(LAST);
+		acc.put(CUR, combined);
+		
+		return acc;
+	}
+	
 	public static class CombineWrapperState extends MapIdxWritable<CombineWrapperState> {
 		@Override
 		public List<NullableTuple> getTuples(Text which) {
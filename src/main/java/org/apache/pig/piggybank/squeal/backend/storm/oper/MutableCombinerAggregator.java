@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.backend.storm.oper;
+
+import storm.trident.operation.CombinerAggregator;
+
+/**
+ * A CombinerAggregator that can fold a value into an accumulator it is
+ * allowed to change.  combine must still leave its arguments alone.
+ */
+public interface MutableCombinerAggregator<T> extends CombinerAggregator<T> {
+	/**
+	 * Fold val into acc.  Both belong to the caller alone and only the
+	 * result may be used afterwards: it is acc updated in place or a new
+	 * value, and it may hold on to parts of val.
+	 */
+	T combineInto(T acc, T val);
+}
@@ -18,9 +18,20 @@
 
 package org.apache.pig.piggybank.squeal.backend.storm.oper;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -29,74 +40,286 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.pig.piggybank.squeal.backend.storm.state.IPigIdxState;
 import org.apache.pig.piggybank.squeal.backend.storm.state.MapIdxWritable;
+import org.apache.pig.piggybank.squeal.backend.storm.state.TupleMultiset;
 import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.util.Pair;
 
-import storm.trident.operation.CombinerAggregator;
 import storm.trident.tuple.TridentTuple;
 
-public class TriBasicPersist implements CombinerAggregator<MapIdxWritable> {
+public class TriBasicPersist implements MutableCombinerAggregator<MapIdxWritable> {
 	
-	static public List<NullableTuple> getTuples(MapIdxWritable state) {
-		List<NullableTuple> ret = new ArrayList<NullableTuple>();
+	/**
+	 * A read only bag in reduce order, stored as runs of distinct tuples
+	 * with their counts.  Iterating streams the repeats rather than
+	 * materializing them.
+	 */
+	public static class TupleRuns extends AbstractList<NullableTuple> implements RandomAccess {
+		private final NullableTuple[] values;
+		// ends[i] is the position just past the i-th run.
+		private final int[] ends;
 		
-		for (Entry<Writable, Writable> ent : ((MapIdxWritable<TriBasicPersistState>)state).entrySet()) {
-			int c = ((IntWritable) ent.getValue()).get();
-			NullableTuple v = (NullableTuple) ent.getKey();
+		TupleRuns(NullableTuple[] values, int[] ends) {
+			this.values = values;
+			this.ends = ends;
+		}
+		
+		@Override
+		public int size() {
+			return ends.length == 0 ? 0 : ends[ends.length - 1];
+		}
+		
+		@Override
+		public NullableTuple get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			}
+			int run = Arrays.binarySearch(ends, index);
+			// An exact hit is the end of that run, so the next one.
+			run = run < 0 ? ~run : run + 1;
+			return values[run];
+		}
+		
+		@Override
+		public Iterator<NullableTuple> iterator() {
+			return new Iterator<NullableTuple>() {
+				int run = 0;
+				int pos = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return pos < size();
+				}
+
+				@Override
+				public NullableTuple next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					while (pos >= ends[run]) {
+						run++;
+					}
+					pos++;
+					return values[run];
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		/**
+		 * Compare run by run, using cmp for the tuples.
+		 */
+		public boolean sameRuns(TupleRuns other, Comparator<NullableTuple> cmp) {
+			if (!Arrays.equals(ends, other.ends)) {
+				return false;
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (cmp.compare(values[i], other.values[i]) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	static public List<NullableTuple> getTuples(TriBasicPersistState state) {
+		TupleMultiset counts = state.getCounts();
+		final List<NullableTuple> live = new ArrayList<NullableTuple>(counts.size());
+		final List<Integer> liveCounts = new ArrayList<Integer>(counts.size());
+		
+		for (int e = 0; e < counts.entries(); e++) {
 			// If c is negative then we may have seen the inverse tuple for 
 			// a positive tuple we've yet to see.  This will silently consume
 			// them.
 			// FIXME: Or we have a terrible problem...
-			for (int i = 0; i < c; i++) {
-				ret.add(v);
+			int c = counts.countAt(e);
+			if (c > 0) {
+				live.add(counts.tupleAt(e));
+				liveCounts.add(c);
 			}
 		}
 		
-		return ret;
+		// Sort the distinct tuples only, the counts ride along.
+		Integer[] order = new Integer[live.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return TriReduce.NullableTupleComparator.compare(live.get(o1), live.get(o2));
+			}
+		});
+		
+		NullableTuple[] values = new NullableTuple[order.length];
+		int[] ends = new int[order.length];
+		int pos = 0;
+		for (int i = 0; i < order.length; i++) {
+			values[i] = live.get(order[i]);
+			pos += liveCounts.get(order[i]);
+			ends[i] = pos;
+		}
+		
+		return new TupleRuns(values, ends);
 	}
 
 	@Override
 	public MapIdxWritable init(TridentTuple tuple) {
-		MapIdxWritable ret = zero();
+		TriBasicPersistState ret = new TriBasicPersistState();
 		NullableTuple values = (NullableTuple) tuple.get(1);
 		
 		// Track the +/- stuff through.
-		ret.put(values, new IntWritable(tuple.getInteger(2)));
+		ret.add(values, tuple.getInteger(2));
 		return ret;
 	}
 
 	@Override
 	public MapIdxWritable combine(MapIdxWritable val1, MapIdxWritable val2) {
-		MapIdxWritable ret = zero();
-		
-		if (val1 != null) {
-			for (Entry<Writable, Writable> ent : ((MapIdxWritable<TriBasicPersistState>)val1).entrySet()) {
-				ret.put(ent.getKey(), new IntWritable(((IntWritable) ent.getValue()).get()));
-			}
-		}
+		// Copy val1 wholesale, it may still be referenced from the cache.
+		TriBasicPersistState ret = val1 == null ? 
+				new TriBasicPersistState() : new TriBasicPersistState((TriBasicPersistState) val1);
 		
 		// We're going to merge into val1.
 		if (val2 != null) {
-			for (Entry<Writable, Writable> ent : ((MapIdxWritable<TriBasicPersistState>)val2).entrySet()) {
-				int c = ((IntWritable) ent.getValue()).get();
-				IntWritable iw = (IntWritable) ret.get(ent.getKey());
-				if (iw == null) {
-					iw = new IntWritable(c);
-					ret.put(ent.getKey(), iw);
-				} else {
-					iw.set(iw.get() + c);
-				}
-			}
+			ret.getCounts().addAll(((TriBasicPersistState) val2).getCounts());
 		}
 		
 		return ret;
 	}
 	
+	@Override
+	public MapIdxWritable combineInto(MapIdxWritable acc, MapIdxWritable val) {
+		if (acc == null) {
+			return val;
+		}
+		if (val != null) {
+			((TriBasicPersistState) acc).getCounts().addAll(((TriBasicPersistState) val).getCounts());
+		}
+		return acc;
+	}
+	
+	/**
+	 * The bag for one key as a TupleMultiset.  The Map methods still work,
+	 * but they go through decoded copies; use add and getCounts instead.
+	 */
 	public static class TriBasicPersistState extends MapIdxWritable<TriBasicPersistState> {
+		// Marks the compact form, the old map form starts with its size.
+		private static final int COMPACT = -1;
+		
+		private TupleMultiset counts;
+		
+		public TriBasicPersistState() {
+			counts = new TupleMultiset();
+		}
+		
+		public TriBasicPersistState(TriBasicPersistState other) {
+			counts = new TupleMultiset(other.counts);
+		}
+		
+		public TupleMultiset getCounts() {
+			return counts;
+		}
+		
+		/**
+		 * @return the new count for t.
+		 */
+		public int add(NullableTuple t, int delta) {
+			return counts.add(t, delta);
+		}
+		
+		Map<Writable, Writable> decode() {
+			Map<Writable, Writable> ret = new HashMap<Writable, Writable>(counts.size() * 2);
+			for (int e = 0; e < counts.entries(); e++) {
+				int c = counts.countAt(e);
+				if (c != 0) {
+					ret.put(counts.tupleAt(e), new IntWritable(c));
+				}
+			}
+			return ret;
+		}
+		
+		@Override
+		public void clear() {
+			counts.clear();
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof NullableTuple && counts.count((NullableTuple) key) != 0;
+		}
+		
+		@Override
+		public boolean containsValue(Object value) {
+			return decode().containsValue(value);
+		}
+		
+		@Override
+		public Set<Entry<Writable, Writable>> entrySet() {
+			return decode().entrySet();
+		}
+		
+		@Override
+		public Writable get(Object key) {
+			int c = key instanceof NullableTuple ? counts.count((NullableTuple) key) : 0;
+			return c == 0 ? null : new IntWritable(c);
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			return counts.isEmpty();
+		}
+		
+		@Override
+		public Set<Writable> keySet() {
+			return decode().keySet();
+		}
+		
+		@Override
+		public Writable put(Writable key, Writable value) {
+			int prev = counts.set((NullableTuple) key, ((IntWritable) value).get());
+			return prev == 0 ? null : new IntWritable(prev);
+		}
+		
+		@Override
+		public Writable remove(Object key) {
+			int prev = counts.set((NullableTuple) key, 0);
+			return prev == 0 ? null : new IntWritable(prev);
+		}
+		
+		@Override
+		public int size() {
+			return counts.size();
+		}
+		
+		@Override
+		public Collection<Writable> values() {
+			return decode().values();
+		}
+		
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(COMPACT);
+			counts.write(out);
+		}
+		
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			int entries = in.readInt();
+			if (entries == COMPACT) {
+				counts.readFields(in);
+			} else {
+				counts.clear();
+				readEntries(in, entries);
+			}
+		}
+		
 		@Override
 		public Pair<Writable, List<Writable>> separate(List<Integer[]> bins) {
-			MapIdxWritable def = null; // = new TriBasicPersistState();
-			List<MapIdxWritable> ret = new ArrayList<MapIdxWritable>(bins.size());
+			TriBasicPersistState def = null;
+			List<TriBasicPersistState> ret = new ArrayList<TriBasicPersistState>(bins.size());
 			HashMap<Integer, Integer> idxMap = new HashMap<Integer, Integer>();
 			
 			for (Integer[] bin : bins) {
@@ -108,13 +331,15 @@ public class TriBasicPersist implements CombinerAggregator<MapIdxWritable> {
 				ret.add(null);
 			}
 			
-			for (Entry<Writable, Writable> ent : entrySet()) {
-				NullableTuple v = (NullableTuple) ent.getKey();
-				int idx = v.getIndex();
+			for (int e = 0; e < counts.entries(); e++) {
+				if (counts.countAt(e) == 0) {
+					continue;
+				}
+				int idx = counts.tupleAt(e).getIndex();
 
 				// Look up the appropriate state.
 				Integer mappedIdx = idxMap.get(idx);
-				MapIdxWritable mapped;
+				TriBasicPersistState mapped;
 				if (mappedIdx == null) {
 					if (def == null) {
 						def = new TriBasicPersistState();
@@ -127,7 +352,7 @@ public class TriBasicPersist implements CombinerAggregator<MapIdxWritable> {
 						ret.set(mappedIdx, mapped);
 					}
 				}
-				mapped.put(ent.getKey(), ent.getValue());
+				mapped.counts.addEntry(counts, e);
 			}
 			
 			return new Pair(def, ret);
@@ -135,7 +360,7 @@ public class TriBasicPersist implements CombinerAggregator<MapIdxWritable> {
 
 		@Override
 		public void merge(IPigIdxState other) {
-			putAll(((TriBasicPersistState)other));
+			counts.setAll(((TriBasicPersistState)other).counts);
 		}
 
 		@Override
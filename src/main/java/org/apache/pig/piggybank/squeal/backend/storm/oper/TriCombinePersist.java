@@ -38,11 +38,10 @@ import org.apache.pig.impl.io.PigNullableWritable;
 
 import backtype.storm.tuple.Values;
 import storm.trident.operation.BaseFunction;
-import storm.trident.operation.CombinerAggregator;
 import storm.trident.operation.TridentCollector;
 import storm.trident.tuple.TridentTuple;
 
-public class TriCombinePersist implements CombinerAggregator<CombineTupleWritable> {
+public class TriCombinePersist implements MutableCombinerAggregator<CombineTupleWritable> {
 
 	private PhysicalPlan combinePlan;
 	private POPackage pack;
@@ -189,6 +188,12 @@ public class TriCombinePersist implements CombinerAggregator<CombineTupleWritabl
 		return ret;
 	}
 
+	@Override
+	public CombineTupleWritable combineInto(CombineTupleWritable acc, CombineTupleWritable val) {
+		// The combine plan builds its own output, there is nothing to reuse.
+		return combine(acc, val);
+	}
+
 	@Override
 	public CombineTupleWritable zero() {
 		return null;
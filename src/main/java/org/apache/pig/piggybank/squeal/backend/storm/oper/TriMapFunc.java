@@ -50,7 +50,7 @@ import storm.trident.operation.TridentCollector;
 import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
 
-public class TriMapFunc extends StormBaseFunction {
+public class TriMapFunc extends StormBaseFunction implements BatchFunction {
 
 	private static final Tuple DUMMYTUPLE = null;
 	private PlanExecutor mapPlanExecutor;
@@ -277,6 +277,28 @@ public class TriMapFunc extends StormBaseFunction {
 		
 		doMetricsStop(collector);
 	}
+	
+	@Override
+	public void executeBatch(List<TridentTuple> tuples, BatchCollector collector) {
+		// Pig plans take one attached input at a time, but the metrics
+		// sampling and wrapping are done once for the block.
+		TridentCollector out = doMetricsStart(collector);
+		
+		for (int i = 0; i < tuples.size(); i++) {
+			TridentTuple tuple = tuples.get(i);
+			collector.startInput(i);
+			
+			// Determine if the tuple is positive or negative
+			Integer tive = tuple.getInteger(2);
+			if (tive < 0) {
+				negMapPlanExecutor.execute(tuple, out, tive);
+			} else {
+				mapPlanExecutor.execute(tuple, out, tive);
+			}
+		}
+		
+		doMetricsStop(out);
+	}
 
 	static public class MakeKeyRawValue extends BaseFunction {
 		@Override
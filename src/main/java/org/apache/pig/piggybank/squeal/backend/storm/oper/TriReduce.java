@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -56,7 +58,13 @@ import storm.trident.operation.TridentCollector;
 import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
 
-public class TriReduce extends StormBaseFunction {
+public class TriReduce extends StormBaseFunction implements BatchFunction {
+
+	// Bytes of reduce inputs and outputs to remember, 0 (the default) to disable.
+	public static final String MEMO_BYTES_KEY = "pig.streaming.reduce.memo.bytes";
+	static public final long DEFAULT_MEMO_BYTES = 0;
+	// Rough cost of a memo entry beyond its tuples.
+	static final int MEMO_OVERHEAD = 128;
 
 	private PhysicalPlan reducePlan;
 	private PhysicalOperator[] roots;
@@ -72,6 +80,39 @@ public class TriReduce extends StormBaseFunction {
 	private final static PhysicalOperator[] DUMMYROOTARR = {};
 	private final static Integer POS = 1;
 	private final static Integer NEG = -1;
+	private transient FakeCollector fc;
+	// Access ordered, the least recently used key goes first.
+	private transient LinkedHashMap<PigNullableWritable, Memo> memo;
+	private transient long memo_limit;
+	private transient long memo_bytes;
+	
+	/**
+	 * The sorted input of the last "current" run for a key and everything
+	 * it emitted.  When the next batch's "last" bag matches the input, the
+	 * output stands in for re-running the plan, and the retractions are
+	 * exactly what was emitted.
+	 */
+	static class Memo {
+		List<NullableTuple> input;
+		Map<Writable, IntWritable> output;
+		long bytes;
+		
+		Memo(List<NullableTuple> input, Map<Writable, IntWritable> output) {
+			this.input = input;
+			this.output = output;
+			
+			bytes = MEMO_OVERHEAD;
+			for (NullableTuple t : input) {
+				Object v = t.getValueAsPigType();
+				if (v != null) {
+					bytes += ((Tuple) v).getMemorySize();
+				}
+			}
+			for (Writable w : output.keySet()) {
+				bytes += ((Tuple) w).getMemorySize() + MEMO_OVERHEAD;
+			}
+		}
+	}
 	
 	public void teardown() throws IOException {
 		for (POStore store : stores) {
@@ -91,6 +132,13 @@ public class TriReduce extends StormBaseFunction {
 	public void	prepare(Map conf, TridentOperationContext context) {
 		super.prepare(conf, context);
 		
+		Number conf_int = (Number) conf.get(MEMO_BYTES_KEY);
+		memo_limit = conf_int == null ? DEFAULT_MEMO_BYTES : conf_int.longValue();
+		if (memo_limit > 0) {
+			memo = new LinkedHashMap<PigNullableWritable, Memo>(16, 0.75f, true);
+			memo_bytes = 0;
+		}
+		
 		// Initialize any stores.
 		if (isLeaf) {
 			try {
@@ -144,6 +192,8 @@ public class TriReduce extends StormBaseFunction {
 		
 		private Map<Writable, IntWritable> last_res = new HashMap<Writable, IntWritable>();
 		private Map<Writable, IntWritable> cur_res = new HashMap<Writable, IntWritable>();
+		// Everything the current run emitted, kept when memoizing.
+		private Map<Writable, IntWritable> cur_all;
 
 		int state = 0;
 		
@@ -151,6 +201,21 @@ public class TriReduce extends StormBaseFunction {
 			this.collector = collector;
 		}
 		
+		void reset(TridentCollector collector) {
+			this.collector = collector;
+			last_res.clear();
+			cur_res.clear();
+			// The previous map may live on in the memo.
+			cur_all = memo == null ? null : new HashMap<Writable, IntWritable>();
+			state = 0;
+		}
+		
+		void seedLast(Map<Writable, IntWritable> output) {
+			for (Entry<Writable, IntWritable> ent : output.entrySet()) {
+				last_res.put(ent.getKey(), new IntWritable(ent.getValue().get()));
+			}
+		}
+		
 		public void switchToCur() {
 			state = 1;
 		}
@@ -173,6 +238,10 @@ public class TriReduce extends StormBaseFunction {
 			if (state == 0) {
 				inc(last_res, v);
 			} else {
+				if (cur_all != null) {
+					inc(cur_all, v);
+				}
+				
 				// See if v was in the last_set.
 				IntWritable iw = last_res.get(v);
 				if (iw == null) {
@@ -242,6 +311,18 @@ public class TriReduce extends StormBaseFunction {
 	
 	@Override
 	public void execute(TridentTuple tri_tuple, TridentCollector collector) {
+		reduce(tri_tuple, collector);
+	}
+	
+	@Override
+	public void executeBatch(List<TridentTuple> tuples, BatchCollector collector) {
+		for (int i = 0; i < tuples.size(); i++) {
+			collector.startInput(i);
+			reduce(tuples.get(i), collector);
+		}
+	}
+	
+	void reduce(TridentTuple tri_tuple, TridentCollector collector) {
 //		System.out.println("TriReduce input: " + tri_tuple);
 		
 		PigNullableWritable key = (PigNullableWritable) tri_tuple.get(0);
@@ -251,9 +332,17 @@ public class TriReduce extends StormBaseFunction {
 		CombineWrapperState cw = (CombineWrapperState) tri_tuple.get(1);
 		int tuples_in = 0;
 		
-		for (Pair<List<NullableTuple>, List<NullableTuple>> p : cw.getTupleBatches(null)) {
+		List<Pair<List<NullableTuple>, List<NullableTuple>>> batches = cw.getTupleBatches(null);
+		// Windows hand over several pairs per key, only memoize the plain case.
+		boolean useMemo = memo != null && batches.size() == 1;
+		
+		for (Pair<List<NullableTuple>, List<NullableTuple>> p : batches) {
 			
-			FakeCollector fc = new FakeCollector(collector);
+			// The diffing state is reused from key to key.
+			if (fc == null) {
+				fc = new FakeCollector(collector);
+			}
+			fc.reset(collector);
 
 			try {
 				// Calculate the previous values.
@@ -261,7 +350,21 @@ public class TriReduce extends StormBaseFunction {
 				tuples = p.first;
 				if (tuples != null) {
 					tuples_in += tuples.size();
-					runReduce(key, tuples, fc);
+					
+					sortForReduce(tuples);
+					sortForReduce(p.second);
+					if (sameTuples(tuples, p.second)) {
+						// Nothing changed for this key, so nothing to retract or emit.
+						tuples_in += p.second.size();
+						continue;
+					}
+					
+					Memo m = useMemo ? memo.get(key) : null;
+					if (m != null && sameTuples(m.input, tuples)) {
+						fc.seedLast(m.output);
+					} else {
+						runReduce(key, tuples, fc);
+					}
 				}
 
 				//		System.out.println("TriReduce |last_input|: " + ((tuples == null) ? 0 : tuples.size()) + " |last_output| : " + fc.last_res.size());
@@ -283,11 +386,34 @@ public class TriReduce extends StormBaseFunction {
 
 			// Emit positive and negative values.
 			fc.emitValues();
+			
+			if (useMemo) {
+				remember(key, new Memo(p.second, fc.cur_all));
+			}
 		}
 		
 		doMetricsStop(collector, tuples_in, key);
 	}
 	
+	void remember(PigNullableWritable key, Memo m) {
+		Memo old = memo.remove(key);
+		if (old != null) {
+			memo_bytes -= old.bytes;
+		}
+		if (m.bytes > memo_limit) {
+			// Would push out everything else.
+			return;
+		}
+		
+		memo.put(key, m);
+		memo_bytes += m.bytes;
+		Iterator<Memo> it = memo.values().iterator();
+		while (memo_bytes > memo_limit) {
+			memo_bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+	
 	public static Comparator<NullableTuple> NullableTupleComparator = new Comparator<NullableTuple>() {
 		@Override
 		public int compare(NullableTuple o1, NullableTuple o2) {
@@ -299,9 +425,32 @@ public class TriReduce extends StormBaseFunction {
 		}
 	};
 
+	static void sortForReduce(List<NullableTuple> tuples) {
+		// Bags from TriBasicPersist come in reduce order already.
+		if (!(tuples instanceof TriBasicPersist.TupleRuns)) {
+			Collections.sort(tuples, NullableTupleComparator);
+		}
+	}
+	
+	static boolean sameTuples(List<NullableTuple> a, List<NullableTuple> b) {
+		// Both sorted by NullableTupleComparator.
+		if (a instanceof TriBasicPersist.TupleRuns && b instanceof TriBasicPersist.TupleRuns) {
+			return ((TriBasicPersist.TupleRuns) a).sameRuns((TriBasicPersist.TupleRuns) b, NullableTupleComparator);
+		}
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (NullableTupleComparator.compare(a.get(i), b.get(i)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public void runReduce(PigNullableWritable key, List<NullableTuple> tuples, TridentCollector collector) {
 		// Sort the tuples as the shuffle would.
-		Collections.sort(tuples, NullableTupleComparator);
+		sortForReduce(tuples);
 //		System.out.println("runReduce: " + tuples);
 		
 		try {
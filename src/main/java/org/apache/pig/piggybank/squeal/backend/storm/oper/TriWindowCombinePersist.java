@@ -37,10 +37,9 @@ import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.util.Pair;
 import org.mortbay.util.ajax.JSON;
 
-import storm.trident.operation.CombinerAggregator;
 import storm.trident.tuple.TridentTuple;
 
-public class TriWindowCombinePersist implements CombinerAggregator<MapIdxWritable> {
+public class TriWindowCombinePersist implements MutableCombinerAggregator<MapIdxWritable> {
 	
 	Map<Integer, Long> windowSettings = new HashMap<Integer, Long>();
 	
@@ -101,6 +100,10 @@ public class TriWindowCombinePersist implements CombinerAggregator<MapIdxWritabl
 		
 		// to isn't null.
 		if (from != null) {
+			// Bags from TriBasicPersistState are read only runs.
+			if (to instanceof TriBasicPersist.TupleRuns) {
+				to = new ArrayList<NullableTuple>(to);
+			}
 			to.addAll(from);
 		}
 		
@@ -241,6 +244,13 @@ public class TriWindowCombinePersist implements CombinerAggregator<MapIdxWritabl
 		return ret;
 	}
 	
+	@Override
+	public MapIdxWritable combineInto(MapIdxWritable acc, MapIdxWritable val) {
+		// Closed windows of val are taken over as is.
+		mergeValues(acc, val);
+		return acc;
+	}
+	
 	static public class WindowCombineState extends MapIdxWritable<WindowCombineState> {
 		private Map<Integer, Long> settings;
 		
@@ -47,9 +47,10 @@ public class CombineTupleWritable implements Writable, IPigIdxState<CombineTuple
 
 	@Override
 	public void write(DataOutput out) throws IOException {
-		WritableUtils.writeVInt(out, values.size());
+		// A negative count marks TypeRegistry ids rather than class names.
+		WritableUtils.writeVInt(out, ~values.size());
 		for (int i = 0; i < values.size(); ++i) {
-			Text.writeString(out, values.get(i).getClass().getName());
+			TypeRegistry.writeType(out, values.get(i).getClass());
 		}
 		for (int i = 0; i < values.size(); ++i) {
 			values.get(i).write(out);
@@ -59,6 +60,18 @@ public class CombineTupleWritable implements Writable, IPigIdxState<CombineTuple
 	@Override
 	public void readFields(DataInput in) throws IOException {
 		int card = WritableUtils.readVInt(in);
+		if (card < 0) {
+			card = ~card;
+			values = new ArrayList<Writable>(card);
+			for (int i = 0; i < card; ++i) {
+				values.add(TypeRegistry.readInstance(in));
+			}
+			for (int i = 0; i < card; ++i) {
+				values.get(i).readFields(in);
+			}
+			return;
+		}
+
 		values = new ArrayList<Writable>(card);
 		Class<? extends Writable>[] cls = new Class[card];
 		try {
@@ -45,6 +45,7 @@ import org.apache.hadoop.io.TwoDArrayWritable;
 import org.apache.hadoop.io.VIntWritable;
 import org.apache.hadoop.io.VLongWritable;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.util.Pair;
@@ -183,12 +184,17 @@ public abstract class MapIdxWritable<T> implements Map<Writable, Writable>, IPig
 
 	// Writable
 
-	// Setup a static mapping of well known Pig types.
-	static Map<Class, Byte> static_classToIdMap = new HashMap<Class, Byte>();
+	/**
+	 * Leads the map in place of the entry count: the entries follow with
+	 * TypeRegistry ids instead of per-map class bytes.  Subclasses with
+	 * their own formats use other negative markers.
+	 */
+	protected static final int TYPED = -2;
+
+	// The ids older states were written with, see readEntries.
 	static Map<Byte, Class> static_idToClassMap = new HashMap<Byte, Class>();
 
 	static void addToMap(Class klazz, Byte b) {
-		static_classToIdMap.put(klazz, b);
 		static_idToClassMap.put(b, klazz);
 	}
 
@@ -236,47 +242,15 @@ public abstract class MapIdxWritable<T> implements Map<Writable, Writable>, IPig
 				Byte.valueOf(Integer.valueOf(-110).byteValue()));
 	}
 
-	private static Byte getId(Class<? extends Writable> klazz, Map<Class, Byte> classToIdMap, DataOutput out) throws IOException {		
-		Byte id = static_classToIdMap.get(klazz);
-		if (id != null) {
-//			System.err.println("[USED] Static id " + klazz.getName() + " " + id);
-			return id;
-		}
-
-		// Assign one dynamically
-		id = classToIdMap.get(klazz);
-		if (id != null) {
-//			System.err.println("[USED] Dynamic id " + klazz.getName() + " " + id);
-			return id;
-		}
-
-		// Add the class to the map and write the mapping.
-		id = (byte) (classToIdMap.size() + 1);
-		classToIdMap.put(klazz, id);
-
-		out.writeByte(id);
-		out.writeUTF(klazz.getName());
-
-//		System.err.println("[ASSIGNED] Dynamic id " + klazz.getName() + " " + id);
-		return id;
-	}
-
-
 	@Override
 	public void write(DataOutput out) throws IOException {
-		Map<Class, Byte> classToIdMap = new HashMap<Class, Byte>();
-
-		// Write out the number of entries in the map
-//		System.err.println("Writing " + this + " " + instance.size());
-		out.writeInt(instance.size());
-
-		// Then write out each key/value pair
+		out.writeInt(TYPED);
+		WritableUtils.writeVInt(out, instance.size());
 		for (Map.Entry<Writable, Writable> e: instance.entrySet()) {
-			out.writeByte(getId(e.getKey().getClass(), classToIdMap, out));
+			TypeRegistry.writeType(out, e.getKey().getClass());
 			e.getKey().write(out);
-			out.writeByte(getId(e.getValue().getClass(), classToIdMap, out));
+			TypeRegistry.writeType(out, e.getValue().getClass());
 			e.getValue().write(out);
-//			System.err.println("WROTE: " + e.getKey() + " " + e.getValue());
 		}
 	}
 
@@ -313,16 +287,32 @@ public abstract class MapIdxWritable<T> implements Map<Writable, Writable>, IPig
 	@SuppressWarnings("unchecked")
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		Map<Byte, Class> idToClassMap = new HashMap<Byte, Class>();
-
 		// First clear the map.  Otherwise we will just accumulate
 		// entries every time this method is called.
 		this.instance.clear();
 
-		// Read the number of entries in the map
 		int entries = in.readInt();
+		if (entries == TYPED) {
+			entries = WritableUtils.readVInt(in);
+			for (int i = 0; i < entries; i++) {
+				Writable key = TypeRegistry.readInstance(in);
+				key.readFields(in);
+				Writable value = TypeRegistry.readInstance(in);
+				value.readFields(in);
+				put(key, value);
+			}
+		} else {
+			// Written before TYPED, entries is the count.
+			readEntries(in, entries);
+		}
+	}
 
-		// Then read each key/value pair
+	/**
+	 * Read entries in the per-map class id format, after their count, and
+	 * put them.
+	 */
+	protected void readEntries(DataInput in, int entries) throws IOException {
+		Map<Byte, Class> idToClassMap = new HashMap<Byte, Class>();
 
 		for (int i = 0; i < entries; i++) {
 			Writable key = (Writable) ReflectionUtils.newInstance(getClass(
@@ -334,7 +324,7 @@ public abstract class MapIdxWritable<T> implements Map<Writable, Writable>, IPig
 					in.readByte(), idToClassMap, in), null);
 
 			value.readFields(in);
-			instance.put(key, value);
+			put(key, value);
 //			System.err.println("READ: " + key + " " + value);
 		}
 	}
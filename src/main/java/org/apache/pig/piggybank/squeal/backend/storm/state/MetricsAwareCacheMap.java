@@ -33,13 +33,21 @@ import storm.trident.util.LRUMap;
 
 // Hacked from: storm.trident.state.map.CacheMap v0.9.2
 public class MetricsAwareCacheMap<T> implements IBackingMap<T> {
-	LRUMap<List<Object>, T> _cache;
+	// "tinylfu" (the default) or "lru".
+	public static final String CACHE_POLICY_KEY = "pig.streaming.state.cache.policy";
+	
+	Map<List<Object>, T> _cache;
     IBackingMap<T> _delegate;
 	private IMetricsTransport mt;
 	boolean inited = false;
 
     public MetricsAwareCacheMap(IBackingMap<T> delegate, int cacheSize, Map conf) {
-        _cache = new LRUMap<List<Object>, T>(cacheSize);
+        Object policy = conf == null ? null : conf.get(CACHE_POLICY_KEY);
+        if (policy != null && policy.toString().equalsIgnoreCase("lru")) {
+        	_cache = new LRUMap<List<Object>, T>(cacheSize);
+        } else {
+        	_cache = new TinyLFUCache<List<Object>, T>(cacheSize);
+        }
         _delegate = delegate;
         mt = MetricsTransportFactory.getInstance(conf, ClassLoader.getSystemClassLoader());
         if (mt != null) {
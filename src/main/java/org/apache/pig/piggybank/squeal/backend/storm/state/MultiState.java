@@ -24,6 +24,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.pig.impl.util.Pair;
@@ -41,6 +47,8 @@ public class MultiState implements IBackingMap<IPigIdxState> {
 	private Map<Integer, MapState> idx_map;
 	private ArrayList<MapState> maps ;
 	List<Integer[]> bins;
+	// Runs the sub-state calls side by side, made on first use.
+	private ExecutorService fanout;
 
 	private MultiState(MapState def_state, Map<Integer, MapState> idx_map, ArrayList<MapState> maps, ArrayList<Integer[]> bins_in) {
 		this.def_state = def_state;
@@ -134,23 +142,99 @@ public class MultiState implements IBackingMap<IPigIdxState> {
 
 	}
 
+	/*
+	 * Run the calls side by side, the last one on this thread, and return
+	 * their results in order.
+	 */
+	private <R> List<R> runAll(List<Callable<R>> calls) {
+		List<Future<R>> pending = new ArrayList<Future<R>>(calls.size());
+		if (calls.size() > 1) {
+			if (fanout == null) {
+				fanout = Executors.newFixedThreadPool(maps.size() + 1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "multistate-fanout");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			for (int i = 0; i < calls.size() - 1; i++) {
+				pending.add(fanout.submit(calls.get(i)));
+			}
+		}
+		
+		// Wait for every call before giving up on the first failure.
+		Throwable failed = null;
+		R last = null;
+		if (!calls.isEmpty()) {
+			try {
+				last = calls.get(calls.size() - 1).call();
+			} catch (Exception e) {
+				failed = e;
+			}
+		}
+		
+		List<R> ret = new ArrayList<R>(calls.size());
+		for (Future<R> f : pending) {
+			try {
+				ret.add(f.get());
+			} catch (ExecutionException e) {
+				failed = failed == null ? e.getCause() : failed;
+			} catch (InterruptedException e) {
+				failed = failed == null ? e : failed;
+			}
+		}
+		if (!calls.isEmpty()) {
+			ret.add(last);
+		}
+		
+		if (failed instanceof RuntimeException) {
+			throw (RuntimeException) failed;
+		} else if (failed != null) {
+			throw new RuntimeException(failed);
+		}
+		return ret;
+	}
+
 	@Override
-	public List<IPigIdxState> multiGet(List<List<Object>> keys) {
+	public List<IPigIdxState> multiGet(final List<List<Object>> keys) {
 		// Call gets on all the states and merge the results together.
-		List<IPigIdxState> ret;
+		List<Callable<List<IPigIdxState>>> calls = new ArrayList<Callable<List<IPigIdxState>>>();
+		if (def_state != null) {
+			calls.add(new Callable<List<IPigIdxState>>() {
+				@Override
+				public List<IPigIdxState> call() throws Exception {
+					return def_state.multiGet(keys);
+				}
+			});
+		}
+		for (final MapState m : maps) {
+			calls.add(new Callable<List<IPigIdxState>>() {
+				@Override
+				public List<IPigIdxState> call() throws Exception {
+					return m.multiGet(keys);
+				}
+			});
+		}
+		List<List<IPigIdxState>> results = runAll(calls);
 		
+		List<IPigIdxState> ret;
+		int first;
 		if (def_state != null) {
-			ret = def_state.multiGet(keys);
+			ret = results.get(0);
+			first = 1;
 		} else {
 			ret = new ArrayList<IPigIdxState>();
 			for (int i = 0; i < keys.size(); i++) {
 				ret.add(null);
 			}
+			first = 0;
 		}
 		
-		// Cycle through the maps and merge things.
-		for (MapState m : maps) {
-			List<IPigIdxState> cur = m.multiGet(keys);
+		// Merge the maps in order.
+		for (int r = first; r < results.size(); r++) {
+			List<IPigIdxState> cur = results.get(r);
 			for (int i = 0; i < cur.size(); i++) {
 				if (ret.get(i) == null) {
 					ret.set(i, cur.get(i));
@@ -165,12 +249,15 @@ public class MultiState implements IBackingMap<IPigIdxState> {
 
 	@Override
 	public void multiPut(List<List<Object>> keys, List<IPigIdxState> vals) {
-		// Yuck.
-		ArrayList<List<Object>> def_pair_k = new ArrayList<List<Object>>();
-		ArrayList<Writable> def_pair_v = new ArrayList<Writable>();
-		ArrayList<MapState> other_state = new ArrayList<MapState>();
-		ArrayList<List<Object>> other_keys = new ArrayList<List<Object>>();
-		ArrayList<Writable> other_vals = new ArrayList<Writable>();
+		final ArrayList<List<Object>> def_pair_k = new ArrayList<List<Object>>();
+		final ArrayList<Writable> def_pair_v = new ArrayList<Writable>();
+		// Per bin, bin j going to maps.get(j).
+		List<ArrayList<List<Object>>> other_keys = new ArrayList<ArrayList<List<Object>>>(bins.size());
+		List<ArrayList<Writable>> other_vals = new ArrayList<ArrayList<Writable>>(bins.size());
+		for (int j = 0; j < bins.size(); j++) {
+			other_keys.add(new ArrayList<List<Object>>());
+			other_vals.add(new ArrayList<Writable>());
+		}
 		
 		for (int i = 0; i < keys.size(); i++) {
 			Pair<Writable, List<Writable>> sep = vals.get(i).separate(bins);
@@ -180,19 +267,37 @@ public class MultiState implements IBackingMap<IPigIdxState> {
 			}
 			for (int j = 0; j < bins.size(); j++) {
 				if (sep.second.get(j) != null) {
-					other_state.add(this.idx_map.get(bins.get(j)[0]));
-					other_keys.add(keys.get(i));
-					other_vals.add(sep.second.get(j));
+					other_keys.get(j).add(keys.get(i));
+					other_vals.get(j).add(sep.second.get(j));
 				}
 			}
 		}
 		
 		// Call multiPut on the wrapped states.
+		List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
 		if (def_pair_k.size() > 0) {
-			def_state.multiPut(def_pair_k, def_pair_v);
+			calls.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					def_state.multiPut(def_pair_k, def_pair_v);
+					return null;
+				}
+			});
 		}
-		for (int i = 0; i < other_state.size(); i++) {
-			other_state.get(i).multiPut(other_keys, other_vals);
+		for (int j = 0; j < bins.size(); j++) {
+			if (other_keys.get(j).size() > 0) {
+				final MapState m = this.idx_map.get(bins.get(j)[0]);
+				final List<List<Object>> k = other_keys.get(j);
+				final List<Writable> v = other_vals.get(j);
+				calls.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						m.multiPut(k, v);
+						return null;
+					}
+				});
+			}
 		}
+		runAll(calls);
 	}
 }
@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.backend.storm.state;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache with W-TinyLFU eviction: new keys enter a small LRU
+ * window, and a key leaving the window only takes a place in the main
+ * segmented LRU if it has been seen more often than the key it would
+ * push out.  A run of one-off keys then only churns the window instead
+ * of flushing the hot ones.
+ *
+ * Null values are cached like any other.  Not thread safe, like the
+ * LRUMap it replaces.
+ */
+public class TinyLFUCache<K, V> extends AbstractMap<K, V> {
+
+	/*
+	 * Count-min sketch of 4 bit counters, halved every sampleSize
+	 * increments so old popularity fades.
+	 */
+	static class FrequencySketch {
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		// Four rows of 16 counters per long.
+		private final long[][] rows;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			// Four counters a row per entry, a long per entry in all.
+			int width = (Integer.highestOneBit(Math.max(16, capacity) - 1) << 1) * 4;
+			rows = new long[SEEDS.length][width / 16];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(16, capacity);
+		}
+
+		private int index(int h, int r) {
+			long x = (h + SEEDS[r]) * SEEDS[r];
+			x += x >>> 32;
+			return (int) x & mask;
+		}
+
+		int frequency(Object key) {
+			int h = spread(key.hashCode());
+			int freq = 15;
+			for (int r = 0; r < rows.length; r++) {
+				int i = index(h, r);
+				int c = (int) (rows[r][i >>> 4] >>> ((i & 15) << 2)) & 0xf;
+				freq = Math.min(freq, c);
+			}
+			return freq;
+		}
+
+		void increment(Object key) {
+			int h = spread(key.hashCode());
+			boolean added = false;
+			for (int r = 0; r < rows.length; r++) {
+				int i = index(h, r);
+				int shift = (i & 15) << 2;
+				long word = rows[r][i >>> 4];
+				if (((word >>> shift) & 0xf) != 0xf) {
+					rows[r][i >>> 4] = word + (1L << shift);
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		private void reset() {
+			for (long[] row : rows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (row[i] >>> 1) & RESET_MASK;
+				}
+			}
+			additions /= 2;
+		}
+
+		private static int spread(int h) {
+			h ^= h >>> 16;
+			h *= 0x45d9f3b;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	private final int windowMax;
+	private final int mainMax;
+	private final int protectedMax;
+	private final FrequencySketch sketch;
+	// Access ordered, eldest first.
+	private final LinkedHashMap<K, V> window = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final LinkedHashMap<K, V> probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final LinkedHashMap<K, V> protect = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	public TinyLFUCache(int capacity) {
+		capacity = Math.max(1, capacity);
+		windowMax = Math.max(1, capacity / 100);
+		mainMax = capacity - windowMax;
+		protectedMax = mainMax * 4 / 5;
+		sketch = new FrequencySketch(capacity);
+	}
+
+	@Override
+	public int size() {
+		return window.size() + probation.size() + protect.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return window.containsKey(key) || probation.containsKey(key) || protect.containsKey(key);
+	}
+
+	/**
+	 * Counts as a use of key, whether or not it is cached.
+	 */
+	@Override
+	public V get(Object key) {
+		sketch.increment(key);
+
+		if (window.containsKey(key)) {
+			return window.get(key);
+		}
+		if (protect.containsKey(key)) {
+			return protect.get(key);
+		}
+		if (probation.containsKey(key)) {
+			// Used again while on probation, promote it.
+			V v = probation.remove(key);
+			protect.put((K) key, v);
+			demote();
+			return v;
+		}
+		return null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (window.containsKey(key)) {
+			return window.put(key, value);
+		}
+		if (protect.containsKey(key)) {
+			return protect.put(key, value);
+		}
+		if (probation.containsKey(key)) {
+			return probation.put(key, value);
+		}
+
+		// A new key is usually a miss being filled in, count that use.
+		sketch.increment(key);
+		window.put(key, value);
+		if (window.size() > windowMax) {
+			evictWindow();
+		}
+		return null;
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (window.containsKey(key)) {
+			return window.remove(key);
+		}
+		if (protect.containsKey(key)) {
+			return protect.remove(key);
+		}
+		return probation.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		window.clear();
+		probation.clear();
+		protect.clear();
+	}
+
+	/*
+	 * Move the protected overflow back to probation.
+	 */
+	private void demote() {
+		while (protect.size() > protectedMax) {
+			Iterator<Map.Entry<K, V>> it = protect.entrySet().iterator();
+			Map.Entry<K, V> eldest = it.next();
+			it.remove();
+			probation.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	/*
+	 * The window's eldest either joins the main segment or is dropped.
+	 */
+	private void evictWindow() {
+		Iterator<Map.Entry<K, V>> it = window.entrySet().iterator();
+		Map.Entry<K, V> cand = it.next();
+		it.remove();
+
+		if (mainMax == 0) {
+			return;
+		}
+		if (probation.size() + protect.size() < mainMax) {
+			probation.put(cand.getKey(), cand.getValue());
+			return;
+		}
+
+		LinkedHashMap<K, V> from = probation.isEmpty() ? protect : probation;
+		Iterator<Map.Entry<K, V>> vit = from.entrySet().iterator();
+		Map.Entry<K, V> victim = vit.next();
+		if (sketch.frequency(cand.getKey()) > sketch.frequency(victim.getKey())) {
+			vit.remove();
+			probation.put(cand.getKey(), cand.getValue());
+		}
+	}
+
+	/**
+	 * A copy of the cached entries.
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		Map<K, V> all = new HashMap<K, V>(window);
+		all.putAll(probation);
+		all.putAll(protect);
+		return all.entrySet();
+	}
+}
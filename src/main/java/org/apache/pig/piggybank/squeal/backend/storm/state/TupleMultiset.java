@@ -0,0 +1,469 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.backend.storm.state;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.io.NullableTuple;
+
+/**
+ * Counted tuples held as their serialized bytes: one byte arena, flat
+ * int arrays for the per entry fields and an open addressing table over
+ * them.  Counts may go negative (a retraction seen before its tuple);
+ * entries that reach zero are dropped.
+ *
+ * Equal tuples have to serialize to the same bytes.  Maps and bags
+ * write in hash or insertion order, so tuples holding them are written
+ * with their maps and bags sorted, see canonical().
+ */
+public class TupleMultiset implements Writable {
+	private static final int MIN_ENTRIES = 4;
+
+	private byte[] arena;
+	private int arenaLen;
+	// Per entry: where its bytes are, their hash and the count.  Dropped
+	// entries stay behind with a zero count until the next compaction.
+	private int[] offs;
+	private int[] lens;
+	private int[] hashes;
+	private int[] counts;
+	private int entries;
+	private int live;
+	// Entry + 1, or 0 for an empty slot.
+	private int[] slots;
+	private transient DataOutputBuffer scratch;
+	private transient DataInputBuffer input;
+
+	public TupleMultiset() {
+		this(0);
+	}
+
+	public TupleMultiset(int expected) {
+		init(expected, expected * 32);
+	}
+
+	/**
+	 * Copy constructor.
+	 */
+	public TupleMultiset(TupleMultiset other) {
+		arena = Arrays.copyOf(other.arena, other.arenaLen);
+		arenaLen = other.arenaLen;
+		offs = Arrays.copyOf(other.offs, other.entries);
+		lens = Arrays.copyOf(other.lens, other.entries);
+		hashes = Arrays.copyOf(other.hashes, other.entries);
+		counts = Arrays.copyOf(other.counts, other.entries);
+		entries = other.entries;
+		live = other.live;
+		slots = other.slots.clone();
+	}
+
+	private void init(int expected, int bytes) {
+		int n = Math.max(MIN_ENTRIES, expected);
+		arena = new byte[Math.max(16, bytes)];
+		arenaLen = 0;
+		offs = new int[n];
+		lens = new int[n];
+		hashes = new int[n];
+		counts = new int[n];
+		entries = 0;
+		live = 0;
+		slots = new int[slotsFor(n)];
+	}
+
+	private static int slotsFor(int n) {
+		// Keep the table at most three quarters full.
+		return Integer.highestOneBit(Math.max(MIN_ENTRIES, n * 4 / 3) - 1) << 1;
+	}
+
+	static int hash(byte[] b, int off, int len) {
+		int h = 1;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + b[i];
+		}
+		// Spread the bits, the table is indexed by the low ones.
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * @return the entry, or ~slot for where it would go.
+	 */
+	private int lookup(byte[] b, int off, int len, int h) {
+		int mask = slots.length - 1;
+		int s = h & mask;
+		while (true) {
+			int e = slots[s] - 1;
+			if (e < 0) {
+				return ~s;
+			}
+			if (hashes[e] == h && lens[e] == len && sameBytes(arena, offs[e], b, off, len)) {
+				return e;
+			}
+			s = (s + 1) & mask;
+		}
+	}
+
+	private static boolean sameBytes(byte[] a, int aOff, byte[] b, int bOff, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[aOff + i] != b[bOff + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add delta to the count for the serialized tuple in b.
+	 *
+	 * @return the new count.
+	 */
+	public int add(byte[] b, int off, int len, int delta) {
+		return update(b, off, len, delta, false);
+	}
+
+	/**
+	 * Set the count for the serialized tuple in b.
+	 *
+	 * @return the previous count.
+	 */
+	public int set(byte[] b, int off, int len, int count) {
+		return update(b, off, len, count, true);
+	}
+
+	private int update(byte[] b, int off, int len, int v, boolean absolute) {
+		int h = hash(b, off, len);
+		int e = lookup(b, off, len, h);
+		if (e < 0) {
+			if (v != 0) {
+				append(b, off, len, h, v, ~e);
+			}
+			return absolute ? 0 : v;
+		}
+
+		int before = counts[e];
+		int after = absolute ? v : before + v;
+		counts[e] = after;
+		if (before == 0 && after != 0) {
+			live++;
+		} else if (before != 0 && after == 0) {
+			live--;
+			if (entries > MIN_ENTRIES && live * 2 < entries) {
+				compact(live);
+			}
+		}
+		return absolute ? before : after;
+	}
+
+	private void append(byte[] b, int off, int len, int h, int count, int slot) {
+		if (entries == offs.length) {
+			if (live * 2 < entries) {
+				// Mostly dropped entries, reclaim them rather than grow.
+				compact(live + 1);
+			} else {
+				int n = Math.max(MIN_ENTRIES, entries * 2);
+				offs = Arrays.copyOf(offs, n);
+				lens = Arrays.copyOf(lens, n);
+				hashes = Arrays.copyOf(hashes, n);
+				counts = Arrays.copyOf(counts, n);
+				rehash(slotsFor(n));
+			}
+			slot = ~lookup(b, off, len, h);
+		}
+		if (arenaLen + len > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLen + len));
+		}
+
+		System.arraycopy(b, off, arena, arenaLen, len);
+		int e = entries++;
+		offs[e] = arenaLen;
+		lens[e] = len;
+		hashes[e] = h;
+		counts[e] = count;
+		arenaLen += len;
+		slots[slot] = e + 1;
+		live++;
+	}
+
+	private void rehash(int size) {
+		slots = new int[size];
+		int mask = size - 1;
+		for (int e = 0; e < entries; e++) {
+			int s = hashes[e] & mask;
+			while (slots[s] != 0) {
+				s = (s + 1) & mask;
+			}
+			slots[s] = e + 1;
+		}
+	}
+
+	/**
+	 * Drop the zero count entries and their bytes.
+	 */
+	private void compact(int expected) {
+		byte[] oldArena = arena;
+		int[] oldOffs = offs;
+		int[] oldLens = lens;
+		int[] oldHashes = hashes;
+		int[] oldCounts = counts;
+		int oldEntries = entries;
+
+		int bytes = 0;
+		for (int e = 0; e < oldEntries; e++) {
+			if (oldCounts[e] != 0) {
+				bytes += oldLens[e];
+			}
+		}
+
+		int n = Math.max(MIN_ENTRIES, expected * 2);
+		arena = new byte[Math.max(16, bytes * 2)];
+		arenaLen = 0;
+		offs = new int[n];
+		lens = new int[n];
+		hashes = new int[n];
+		counts = new int[n];
+		entries = 0;
+		for (int e = 0; e < oldEntries; e++) {
+			if (oldCounts[e] != 0) {
+				System.arraycopy(oldArena, oldOffs[e], arena, arenaLen, oldLens[e]);
+				offs[entries] = arenaLen;
+				lens[entries] = oldLens[e];
+				hashes[entries] = oldHashes[e];
+				counts[entries] = oldCounts[e];
+				arenaLen += oldLens[e];
+				entries++;
+			}
+		}
+		live = entries;
+		rehash(slotsFor(n));
+	}
+
+	private DataOutputBuffer serialize(NullableTuple t) {
+		if (scratch == null) {
+			scratch = new DataOutputBuffer();
+		}
+		scratch.reset();
+		try {
+			canonical(t).write(scratch);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return scratch;
+	}
+
+	private static final Comparator<Object> PIG_ORDER = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b) {
+			return DataType.compare(a, b);
+		}
+	};
+
+	/**
+	 * t, or a copy of it with every nested map and bag sorted.
+	 */
+	static NullableTuple canonical(NullableTuple t) throws ExecException {
+		Object v = t.getValueAsPigType();
+		if (v == null || !hasMapOrBag(v)) {
+			return t;
+		}
+		NullableTuple c = new NullableTuple((Tuple) canonical(v));
+		c.setIndex(t.getIndex());
+		return c;
+	}
+
+	static boolean hasMapOrBag(Object o) {
+		if (o instanceof Map || o instanceof DataBag) {
+			return true;
+		}
+		if (o instanceof Tuple) {
+			for (Object f : ((Tuple) o).getAll()) {
+				if (hasMapOrBag(f)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	static Object canonical(Object o) throws ExecException {
+		if (o instanceof Map) {
+			Map<String, Object> m = new TreeMap<String, Object>();
+			for (Entry<String, Object> ent : ((Map<String, Object>) o).entrySet()) {
+				m.put(ent.getKey(), canonical(ent.getValue()));
+			}
+			return m;
+		} else if (o instanceof DataBag) {
+			List<Tuple> tuples = new ArrayList<Tuple>();
+			for (Tuple t : (DataBag) o) {
+				tuples.add((Tuple) canonical(t));
+			}
+			Collections.sort(tuples, PIG_ORDER);
+			return BagFactory.getInstance().newDefaultBag(tuples);
+		} else if (o instanceof Tuple && hasMapOrBag(o)) {
+			Tuple t = (Tuple) o;
+			Tuple c = TupleFactory.getInstance().newTuple(t.size());
+			for (int i = 0; i < t.size(); i++) {
+				c.set(i, canonical(t.get(i)));
+			}
+			return c;
+		}
+		return o;
+	}
+
+	/**
+	 * @return the new count.
+	 */
+	public int add(NullableTuple t, int delta) {
+		DataOutputBuffer buf = serialize(t);
+		return add(buf.getData(), 0, buf.getLength(), delta);
+	}
+
+	/**
+	 * @return the previous count.
+	 */
+	public int set(NullableTuple t, int count) {
+		DataOutputBuffer buf = serialize(t);
+		return set(buf.getData(), 0, buf.getLength(), count);
+	}
+
+	public int count(NullableTuple t) {
+		DataOutputBuffer buf = serialize(t);
+		int e = lookup(buf.getData(), 0, buf.getLength(), hash(buf.getData(), 0, buf.getLength()));
+		return e < 0 ? 0 : counts[e];
+	}
+
+	/**
+	 * Add entry e of other to this one, bytes as is.
+	 */
+	public int addEntry(TupleMultiset other, int e) {
+		return add(other.arena, other.offs[e], other.lens[e], other.counts[e]);
+	}
+
+	/**
+	 * Sum the counts of other into this one.
+	 */
+	public void addAll(TupleMultiset other) {
+		int n = other.entries;
+		for (int e = 0; e < n; e++) {
+			if (other.counts[e] != 0) {
+				addEntry(other, e);
+			}
+		}
+	}
+
+	/**
+	 * Take the counts of other over the ones here.
+	 */
+	public void setAll(TupleMultiset other) {
+		int n = other.entries;
+		for (int e = 0; e < n; e++) {
+			if (other.counts[e] != 0) {
+				set(other.arena, other.offs[e], other.lens[e], other.counts[e]);
+			}
+		}
+	}
+
+	/**
+	 * Entries run from 0 to entries(), skip the ones with a zero count.
+	 */
+	public int entries() {
+		return entries;
+	}
+
+	public int countAt(int e) {
+		return counts[e];
+	}
+
+	public NullableTuple tupleAt(int e) {
+		NullableTuple t = new NullableTuple();
+		if (input == null) {
+			input = new DataInputBuffer();
+		}
+		input.reset(arena, offs[e], lens[e]);
+		try {
+			t.readFields(input);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return t;
+	}
+
+	/**
+	 * @return the number of distinct tuples with a non-zero count.
+	 */
+	public int size() {
+		return live;
+	}
+
+	public boolean isEmpty() {
+		return live == 0;
+	}
+
+	public void clear() {
+		init(0, 0);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, live);
+		for (int e = 0; e < entries; e++) {
+			if (counts[e] != 0) {
+				WritableUtils.writeVInt(out, lens[e]);
+				out.write(arena, offs[e], lens[e]);
+				WritableUtils.writeVInt(out, counts[e]);
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		int n = WritableUtils.readVInt(in);
+		init(n, n * 32);
+		byte[] buf = new byte[64];
+		for (int i = 0; i < n; i++) {
+			int len = WritableUtils.readVInt(in);
+			if (len > buf.length) {
+				buf = new byte[Math.max(len, buf.length * 2)];
+			}
+			in.readFully(buf, 0, len);
+			add(buf, 0, len, WritableUtils.readVInt(in));
+		}
+	}
+}
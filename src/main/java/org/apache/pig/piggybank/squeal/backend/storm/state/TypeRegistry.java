@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.backend.storm.state;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.pig.impl.io.NullableBag;
+import org.apache.pig.impl.io.NullableBooleanWritable;
+import org.apache.pig.impl.io.NullableBytesWritable;
+import org.apache.pig.impl.io.NullableDoubleWritable;
+import org.apache.pig.impl.io.NullableFloatWritable;
+import org.apache.pig.impl.io.NullableIntWritable;
+import org.apache.pig.impl.io.NullableLongWritable;
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.impl.io.NullableUnknownWritable;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.CombineWrapper.CombineWrapperState;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.TriBasicPersist.TriBasicPersistState;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.TriWindowCombinePersist.WindowCombineState;
+
+/**
+ * Stable ids for the Writables that state and wire values carry, written
+ * as a varint in place of the class name.  Ids are stored with the
+ * state: only ever append to the table.  Anything not in it is written
+ * as 0 followed by its class name.
+ */
+public class TypeRegistry {
+	private static final Class[] CLASSES = {
+		null, // 0: by name.
+
+		// Hadoop.
+		BooleanWritable.class,
+		BytesWritable.class,
+		FloatWritable.class,
+		IntWritable.class,
+		LongWritable.class,
+		MapWritable.class,
+		MD5Hash.class,
+		Text.class,
+		VIntWritable.class,
+		VLongWritable.class,
+
+		// Pig.
+		NullableBag.class,
+		NullableBooleanWritable.class,
+		NullableBytesWritable.class,
+		NullableDoubleWritable.class,
+		NullableFloatWritable.class,
+		NullableIntWritable.class,
+		NullableLongWritable.class,
+		NullableText.class,
+		NullableTuple.class,
+		NullableUnknownWritable.class,
+
+		// Pig-Squeal.
+		CombineTupleWritable.class,
+		CombineWrapperState.class,
+		TriBasicPersistState.class,
+		WindowCombineState.class,
+		WindowBundle.class,
+	};
+
+	private static final Map<Class, Integer> ids = new HashMap<Class, Integer>();
+	static {
+		for (int i = 1; i < CLASSES.length; i++) {
+			ids.put(CLASSES[i], i);
+		}
+	}
+
+	// Filled in on first use.
+	private static final Constructor[] ctors = new Constructor[CLASSES.length];
+	private static final Map<String, Constructor> byName = new ConcurrentHashMap<String, Constructor>();
+
+	/**
+	 * @return the registered classes in id order.
+	 */
+	public static List<Class<? extends Writable>> getClasses() {
+		List l = Arrays.asList(CLASSES).subList(1, CLASSES.length);
+		return Collections.unmodifiableList(l);
+	}
+
+	public static void writeType(DataOutput out, Class<? extends Writable> klazz) throws IOException {
+		Integer id = ids.get(klazz);
+		if (id != null) {
+			WritableUtils.writeVInt(out, id);
+		} else {
+			WritableUtils.writeVInt(out, 0);
+			out.writeUTF(klazz.getName());
+		}
+	}
+
+	/**
+	 * Read a type written by writeType and return a fresh instance of it.
+	 */
+	public static Writable readInstance(DataInput in) throws IOException {
+		int id = WritableUtils.readVInt(in);
+		Constructor c;
+		if (id == 0) {
+			String name = in.readUTF();
+			c = byName.get(name);
+			if (c == null) {
+				try {
+					c = constructor(Class.forName(name));
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Class " + name + " not found", e);
+				}
+				byName.put(name, c);
+			}
+		} else if (id < CLASSES.length) {
+			c = ctors[id];
+			if (c == null) {
+				c = constructor(CLASSES[id]);
+				// Benign race, every thread finds the same constructor.
+				ctors[id] = c;
+			}
+		} else {
+			throw new IOException("Unknown type id: " + id);
+		}
+
+		try {
+			return (Writable) c.newInstance();
+		} catch (Exception e) {
+			throw new IOException("Unable to create " + c.getDeclaringClass().getName(), e);
+		}
+	}
+
+	private static Constructor constructor(Class klazz) throws IOException {
+		try {
+			Constructor c = klazz.getDeclaredConstructor();
+			c.setAccessible(true);
+			return c;
+		} catch (NoSuchMethodException e) {
+			throw new IOException("No default constructor for " + klazz.getName(), e);
+		}
+	}
+}
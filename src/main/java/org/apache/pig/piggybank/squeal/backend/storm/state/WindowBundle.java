@@ -27,7 +27,6 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.pig.piggybank.squeal.backend.storm.oper.TriBasicPersist.TriBasicPersistState;
 import org.apache.pig.impl.io.NullableTuple;
@@ -90,17 +89,21 @@ public class WindowBundle<T extends Writable> implements Writable {
 			}
 			
 			
-			for (Entry<Writable, Writable> ent : other.openWin.contents.entrySet()) {
-				IntWritable c = (IntWritable) ent.getValue();
+			TupleMultiset other_counts = other.openWin.contents.getCounts();
+			for (int e = 0; e < other_counts.entries(); e++) {
 				int delta = 1;
-				int count = c.get();
-				if (c.get() < 0) {
+				int count = other_counts.countAt(e);
+				if (count == 0) {
+					continue;
+				}
+				if (count < 0) {
 					delta = -1;
 					count = -count;
 				}
 				// Unroll things so we don't end up with windows with too much data.
+				NullableTuple t = other_counts.tupleAt(e);
 				for (int i = 0; i < count; i++) {
-					update(ent.getKey(), delta);
+					update(t, delta);
 				}
 			}
 		}
@@ -153,19 +156,11 @@ public class WindowBundle<T extends Writable> implements Writable {
 			openNewWindow();
 		}
 		
-		IntWritable iw = (IntWritable) openWin.contents.get(o);
-		if (iw == null) {
-			iw = new IntWritable(c);
-			openWin.contents.put(o, iw);
-		} else {
-			iw.set(iw.get() + c);
-			if (iw.get() == 0) {
-				openWin.contents.remove(o);
-			}
-		}
+		// Zero counts drop out on their own.
+		int now = openWin.contents.add((NullableTuple) o, c);
 		
 		// FIXME: This is incorrect for c != +/- 1.
-		if (c > 0 && iw.get() > 0) {
+		if (c > 0 && now > 0) {
 			openWin.itemCount += 1;
 		} else if (c < 0 && openWin.itemCount > 0){
 			openWin.itemCount -= 1;
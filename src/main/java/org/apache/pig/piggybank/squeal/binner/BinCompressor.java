@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.binner;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Whole-bin compression codecs.  Instances keep native state around and
+ * are not thread safe.
+ */
+public abstract class BinCompressor {
+	public static final byte DEFLATE = 1;
+	public static final byte SNAPPY = 2;
+
+	public abstract byte id();
+
+	/**
+	 * Room needed in the destination to compress len bytes.
+	 */
+	public abstract int maxCompressedLength(int len);
+
+	/**
+	 * Compress src[0, len) into dst at off.
+	 *
+	 * @return bytes written, or -1 if the result didn't fit.
+	 */
+	public abstract int compress(byte[] src, int len, byte[] dst, int off);
+
+	/**
+	 * Decompress src[off, off + len) into dst[0, rawLen).
+	 */
+	public abstract void decompress(byte[] src, int off, int len, byte[] dst, int rawLen);
+
+	public static BinCompressor forName(String name) {
+		if (name.equalsIgnoreCase("deflate")) {
+			return new DeflateCompressor();
+		} else if (name.equalsIgnoreCase("snappy")) {
+			return new SnappyCompressor();
+		}
+		throw new RuntimeException("Unknown bin codec: " + name);
+	}
+
+	public static BinCompressor forId(byte id) {
+		switch (id) {
+		case DEFLATE:
+			return new DeflateCompressor();
+		case SNAPPY:
+			return new SnappyCompressor();
+		default:
+			throw new RuntimeException("Unknown bin codec id: " + id);
+		}
+	}
+
+	static class DeflateCompressor extends BinCompressor {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		Inflater inflater = new Inflater();
+
+		@Override
+		public byte id() {
+			return DEFLATE;
+		}
+
+		@Override
+		public int maxCompressedLength(int len) {
+			// Anything that doesn't shrink isn't worth sending.
+			return len;
+		}
+
+		@Override
+		public int compress(byte[] src, int len, byte[] dst, int off) {
+			deflater.reset();
+			deflater.setInput(src, 0, len);
+			deflater.finish();
+			int n = deflater.deflate(dst, off, dst.length - off);
+			return deflater.finished() ? n : -1;
+		}
+
+		@Override
+		public void decompress(byte[] src, int off, int len, byte[] dst, int rawLen) {
+			inflater.reset();
+			inflater.setInput(src, off, len);
+			try {
+				if (inflater.inflate(dst, 0, rawLen) != rawLen) {
+					throw new RuntimeException("Short bin: expected " + rawLen + " bytes");
+				}
+			} catch (DataFormatException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	static class SnappyCompressor extends BinCompressor {
+		@Override
+		public byte id() {
+			return SNAPPY;
+		}
+
+		@Override
+		public int maxCompressedLength(int len) {
+			return Snappy.maxCompressedLength(len);
+		}
+
+		@Override
+		public int compress(byte[] src, int len, byte[] dst, int off) {
+			try {
+				return Snappy.compress(src, 0, len, dst, off);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void decompress(byte[] src, int off, int len, byte[] dst, int rawLen) {
+			try {
+				if (Snappy.uncompress(src, off, len, dst, 0) != rawLen) {
+					throw new RuntimeException("Short bin: expected " + rawLen + " bytes");
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.binner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.grouping.CustomStreamGrouping;
+import backtype.storm.task.WorkerTopologyContext;
+import backtype.storm.tuple.Fields;
+
+/**
+ * Fields grouping for streams of bins.  Binner hashes each tuple on the
+ * grouping fields itself and emits the bin under the index of the target
+ * task it picked; this grouping just delivers the bin to that task.
+ */
+public class BinGrouping implements CustomStreamGrouping {
+	private Fields fields;
+	private transient List<List<Integer>> bySlot;
+
+	public BinGrouping(Fields fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * The fields Binner routes on.
+	 */
+	public Fields getFields() {
+		return fields;
+	}
+
+	@Override
+	public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+			List<Integer> targetTasks) {
+		bySlot = new ArrayList<List<Integer>>(targetTasks.size());
+		for (Integer task : targetTasks) {
+			bySlot.add(Collections.singletonList(task));
+		}
+	}
+
+	@Override
+	public List<Integer> chooseTasks(int taskId, List<Object> values) {
+		return bySlot.get((Integer) values.get(0));
+	}
+}
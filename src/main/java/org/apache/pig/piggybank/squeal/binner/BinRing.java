@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.binner;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import storm.trident.tuple.TridentTuple;
+
+/**
+ * Bounded single producer, single consumer ring of tuples headed for one
+ * destination task.  The bolt thread offers, the encoder thread drains;
+ * neither side takes a lock.
+ */
+public class BinRing {
+	public interface Drain {
+		void take(Integer dest, Object aKey, TridentTuple tup);
+	}
+
+	private final Integer dest;
+	private final Object[] keys;
+	private final TridentTuple[] tuples;
+	private final int mask;
+	// Next slot to read, only written by the consumer.
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to write, only written by the producer.
+	private final AtomicLong tail = new AtomicLong();
+	// The producer's last look at head, saves a volatile read per offer.
+	private long cachedHead = 0;
+
+	public BinRing(Integer dest, int size) {
+		int cap = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		this.dest = dest;
+		keys = new Object[cap];
+		tuples = new TridentTuple[cap];
+		mask = cap - 1;
+	}
+
+	public Integer getDest() {
+		return dest;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Producer side.
+	 *
+	 * @return false if the ring is full.
+	 */
+	public boolean offer(Object aKey, TridentTuple tup) {
+		long t = tail.get();
+		if (t - cachedHead > mask) {
+			cachedHead = head.get();
+			if (t - cachedHead > mask) {
+				return false;
+			}
+		}
+
+		int i = (int) t & mask;
+		keys[i] = aKey;
+		tuples[i] = tup;
+		// Publish the slot.
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side: hand everything available to d.
+	 *
+	 * @return the number of tuples drained.
+	 */
+	public int drain(Drain d) {
+		long h = head.get();
+		long t = tail.get();
+		for (long p = h; p < t; p++) {
+			int i = (int) p & mask;
+			Object aKey = keys[i];
+			TridentTuple tup = tuples[i];
+			keys[i] = null;
+			tuples[i] = null;
+			d.take(dest, aKey, tup);
+		}
+		// Release the slots.
+		head.lazySet(t);
+		return (int) (t - h);
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+}
@@ -19,12 +19,17 @@
 package org.apache.pig.piggybank.squeal.binner;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,74 +46,397 @@ import backtype.storm.serialization.KryoValuesSerializer;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.task.WorkerTopologyContext;
-import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
 import backtype.storm.utils.Utils;
 
 public class Binner {
 	public static final String WRITE_THRESH_CONF = "flexy.binner.write.threshold";
+	public static final String COLUMNAR_CONF = "flexy.binner.columnar";
+	public static final String ROUTING_CONF = "flexy.binner.routing";
+	public static final String KEY_GROUPS_CONF = "flexy.binner.key.groups";
+	public static final String RING_VNODES_CONF = "flexy.binner.ring.vnodes";
+	public static final String CODEC_CONF = "flexy.binner.codec";
+	public static final String COMPRESS_MIN_BYTES_CONF = "flexy.binner.compress.min.bytes";
+	public static final String COMPRESS_MAX_RATIO_CONF = "flexy.binner.compress.max.ratio";
+	public static final String ASYNC_CONF = "flexy.binner.async";
+	public static final String ASYNC_RING_SIZE_CONF = "flexy.binner.async.ring.size";
+	public static final String ASYNC_READY_BYTES_CONF = "flexy.binner.async.ready.bytes";
 	int _write_thresh = 64*1024;
+	// Encode bins column-wise, see ColumnarBin.
+	boolean columnar = false;
+	
+	// Optional whole-bin compression.
+	BinCompressor codec = null;
+	int compress_min_bytes = 1024;
+	double compress_max_ratio = 0.9;
+	byte[] scratch = new byte[0];
+	// After a run of bins that didn't shrink enough, only sample every SKIP_SAMPLE-th bin.
+	static final int POOR_LIMIT = 8;
+	static final int SKIP_SAMPLE = 16;
+	int poor_streak = 0;
+	int skipped = 0;
 	private KryoValuesSerializer _ser;
+	
+	// Optional encoder thread, see Encoder.
+	boolean async = false;
+	int ring_size = 1024;
+	// The encoder holds off once this many bytes of finished bins wait to be emitted.
+	long ready_bytes = 1024*1024;
+	Encoder encoder = null;
 	private static final Log log = LogFactory.getLog(Binner.class);
 	
+	/*
+	 * Bin layout: an int record count followed by the records, each an int
+	 * length and the Kryo serialized values.  The count and lengths are
+	 * patched in place so nothing is copied until the final emit.
+	 * Columnar bins are laid out as described in ColumnarBin.
+	 */
+	static final int HEADER_SIZE = 4;
+	// Compressed bins: marker, codec id and raw length, then the compressed bin.
+	static final int COMPRESSED = Integer.MIN_VALUE;
+	static final int COMPRESSED_HEADER_SIZE = 9;
+	
 	class OutCollector {
 		Output out;
+		ColumnarBin.Writer col;
 		Object aKey;
+		int count;
 		
-		OutCollector(Object aKey) {
+		OutCollector() {
+			if (columnar) {
+				col = new ColumnarBin.Writer(_ser, _write_thresh);
+			} else {
+				out = new Output(_write_thresh + HEADER_SIZE, -1);
+			}
+		}
+		
+		void reset(Object aKey) {
 			this.aKey = aKey;
-			out = new Output(_write_thresh, -1);
+			count = 0;
+			if (columnar) {
+				col.reset();
+			} else {
+				out.clear();
+				out.setPosition(HEADER_SIZE);
+			}
+		}
+		
+		int size() {
+			return columnar ? col.size() : out.position();
+		}
+		
+		int capacity() {
+			return columnar ? col.capacity() : out.getBuffer().length;
 		}
 	}
 	
 	// Output bins for each downstream taskid.
 	Map<Integer, OutCollector> bins = new HashMap<Integer, OutCollector>();	
+	// Emptied bins ready for reuse.
+	ArrayDeque<OutCollector> pool = new ArrayDeque<OutCollector>();
 	private List<Grouper> groupings = new ArrayList<Grouper>();
 	
 	private OutputCollector collector;
 	private String exposedName;
 	private int taskId;
 	
+	/**
+	 * Moves serialization off the bolt thread.  emit() only routes a tuple
+	 * and drops it on its destination's ring; this thread drains the rings
+	 * into bins and queues the finished ones.  The bolt thread does all
+	 * the actual emitting, as Storm expects: each emit() sends whatever
+	 * bins are ready, anchored to its input, and flush() waits for the
+	 * rest so that every bin is out before FlexyBolt sends its coord
+	 * message.  As without an encoder, a bin is anchored to the input
+	 * current when it goes out, which may not be one of those whose rows
+	 * it holds.
+	 * 
+	 * The ready queue is bounded by ready_bytes: past it the encoder stops
+	 * taking tuples until the bolt thread catches up, and the rings fill
+	 * up behind it.
+	 * 
+	 * Tuples are serialized after emit() returns, so nothing in them may
+	 * be changed once emitted.
+	 */
+	class Encoder implements Runnable, BinRing.Drain {
+		static final long IDLE_PARK_NS = 50000;
+		
+		Map<Integer, BinRing> rings = new HashMap<Integer, BinRing>();
+		BinRing[] ringList;
+		ConcurrentLinkedQueue<Values> ready = new ConcurrentLinkedQueue<Values>();
+		// Bin bytes in ready.
+		AtomicLong readyBytes = new AtomicLong();
+		Thread thread;
+		volatile boolean running = true;
+		volatile Thread waiter;
+		// Flush requests from the bolt thread and how far the encoder has gotten.
+		volatile long flushRequested = 0;
+		volatile long flushed = 0;
+		volatile Throwable failure = null;
+		
+		Encoder(List<Integer> dests) {
+			for (Integer dest : dests) {
+				if (!rings.containsKey(dest)) {
+					rings.put(dest, new BinRing(dest, ring_size));
+				}
+			}
+			ringList = rings.values().toArray(new BinRing[0]);
+			
+			thread = new Thread(this, "binner-encoder-" + exposedName + "-" + taskId);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					// Read the request first, everything offered before it gets drained below.
+					long req = flushRequested;
+					if (readyBytes.get() > ready_bytes) {
+						// Let the bolt thread catch up.
+						LockSupport.parkNanos(this, IDLE_PARK_NS);
+						continue;
+					}
+					int n = 0;
+					for (BinRing ring : ringList) {
+						n += ring.drain(this);
+					}
+					
+					if (req > flushed) {
+						for (Entry<Integer, OutCollector> ent : bins.entrySet()) {
+							_flush(ent.getValue(), null);
+						}
+						bins.clear();
+						flushed = req;
+						LockSupport.unpark(waiter);
+					} else if (n == 0) {
+						LockSupport.parkNanos(this, IDLE_PARK_NS);
+					}
+				}
+			} catch (Throwable e) {
+				log.error("Bin encoder failed", e);
+				failure = e;
+				LockSupport.unpark(waiter);
+			}
+		}
+		
+		@Override
+		public void take(Integer dest, Object aKey, TridentTuple tup) {
+			write(dest, aKey, tup, null);
+		}
+		
+		void check() {
+			if (failure != null) {
+				throw new RuntimeException("Bin encoder failed", failure);
+			}
+		}
+		
+		void offer(Integer dest, Object aKey, TridentTuple tup, Tuple anchor) {
+			BinRing ring = rings.get(dest);
+			while (!ring.offer(aKey, tup)) {
+				// Full, wait for the encoder to catch up.  It may be waiting on us.
+				check();
+				emitReady(anchor);
+				LockSupport.unpark(thread);
+				Thread.yield();
+			}
+		}
+		
+		void add(Values v, int bytes) {
+			ready.add(v);
+			readyBytes.addAndGet(bytes);
+		}
+		
+		void emitReady(Tuple anchor) {
+			Values v;
+			while (null != (v = ready.poll())) {
+				readyBytes.addAndGet(-((byte[]) v.get(1)).length);
+				collector.emit(exposedName, anchor, v);
+			}
+		}
+		
+		void flush(Tuple input) {
+			waiter = Thread.currentThread();
+			long req = flushRequested + 1;
+			flushRequested = req;
+			LockSupport.unpark(thread);
+			
+			while (flushed < req) {
+				check();
+				emitReady(input);
+				LockSupport.parkNanos(this, IDLE_PARK_NS);
+			}
+			check();
+			emitReady(input);
+		}
+		
+		void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
 	static class Grouper { // implements CustomStreamGrouping {
+		// Fields routing: plain modulo, fixed key groups assigned to tasks in
+		// ranges, or a consistent hash ring over the task slots.
+		static final int HASH = 0;
+		static final int KEY_GROUP = 1;
+		static final int CONSISTENT = 2;
 
 		private Grouping gr;
 		private CustomStreamGrouping wrapped;
 		private List<Integer> targetTasks;
-		private Fields gr_fields;
+		private String[] gr_fields;
 		private int num_tasks;
 		Random r = new Random();
+		
+		int routing = HASH;
+		int key_groups = 128;
+		int vnodes = 64;
+		// Sorted ring points and the task slot owning each.
+		int[] ring;
+		int[] ringOwner;
+		// Bins on a BinGrouping are keyed by the slot of their task.
+		Integer[] routeKeys;
 
-		public Grouper(Grouping gr) {
+		public Grouper(Grouping gr, Map stormConf) {
 			this.gr = gr;
+			
+			if (stormConf.get(ROUTING_CONF) != null) {
+				String v = stormConf.get(ROUTING_CONF).toString();
+				if (v.equalsIgnoreCase("keygroup")) {
+					routing = KEY_GROUP;
+				} else if (v.equalsIgnoreCase("consistent")) {
+					routing = CONSISTENT;
+				} else if (!v.equalsIgnoreCase("hash")) {
+					throw new RuntimeException("Unknown routing: " + v);
+				}
+			}
+			Number conf_int = (Number) stormConf.get(KEY_GROUPS_CONF);
+			if (conf_int != null) key_groups = Math.max(1, conf_int.intValue());
+			conf_int = (Number) stormConf.get(RING_VNODES_CONF);
+			if (conf_int != null) vnodes = Math.max(1, conf_int.intValue());
 		}
 		
 		public void prepare(WorkerTopologyContext context,
 				GlobalStreamId stream, List<Integer> targetTasks) {
 			
 			if (gr.is_set_fields()) {
-				gr_fields = new Fields(gr.get_fields());
+				gr_fields = gr.get_fields().toArray(new String[0]);
 			} else if (gr.is_set_custom_serialized()) {
 				wrapped = (CustomStreamGrouping) Utils.deserialize(gr.get_custom_serialized());
-				wrapped.prepare(context, stream, targetTasks);
+				if (wrapped instanceof BinGrouping) {
+					// Route here, the grouping only delivers.
+					gr_fields = ((BinGrouping) wrapped).getFields().toList().toArray(new String[0]);
+					wrapped = null;
+				} else {
+					wrapped.prepare(context, stream, targetTasks);
+				}
 			}
 			
 			this.targetTasks = targetTasks;
 			num_tasks = targetTasks.size();
+			
+			if (gr.is_set_custom_serialized() && gr_fields != null) {
+				routeKeys = new Integer[num_tasks];
+				for (int slot = 0; slot < num_tasks; slot++) {
+					routeKeys[slot] = slot;
+				}
+			}
+			
+			if (routing == CONSISTENT) {
+				// Points are keyed on the task slot so adding tasks only adds points.
+				long[] points = new long[num_tasks * vnodes];
+				for (int slot = 0; slot < num_tasks; slot++) {
+					for (int j = 0; j < vnodes; j++) {
+						points[slot * vnodes + j] = ((long) mix((slot << 16) ^ j) << 32) | slot;
+					}
+				}
+				Arrays.sort(points);
+				ring = new int[points.length];
+				ringOwner = new int[points.length];
+				for (int i = 0; i < points.length; i++) {
+					ring[i] = (int) (points[i] >> 32);
+					ringOwner[i] = (int) points[i];
+				}
+			}
 		}
-
-		public List<Integer> chooseTasks(int taskId, final TridentTuple tup) {
-			if (gr.is_set_fields()) {
-				return new ArrayList() {{ add(targetTasks.get(Math.abs(tup.select(gr_fields).hashCode()) % num_tasks)); }};
+		
+		/**
+		 * Fields, bin and shuffle groupings pick exactly one task.
+		 */
+		public boolean isSingle() {
+			return wrapped == null;
+		}
+		
+		public int chooseSlot(TridentTuple tup) {
+			if (gr_fields != null) {
+				return slot(hash(tup));
 			} else if (gr.is_set_shuffle()) {
-				return new ArrayList() {{ add(targetTasks.get(r.nextInt(num_tasks))); }};
-			} else if (wrapped != null) {
-				return wrapped.chooseTasks(taskId, tup);
+				return r.nextInt(num_tasks);
 			} else {
 				throw new RuntimeException("Unknown grouping type: " + gr.getSetField());
 			}
 		}
 		
+		public Integer task(int slot) {
+			return targetTasks.get(slot);
+		}
+		
+		/**
+		 * The key to emit a bin bound for slot with.
+		 */
+		public Object routeKey(int slot, TridentTuple tup) {
+			return routeKeys != null ? routeKeys[slot] : tup.get(0);
+		}
+
+		public List<Integer> chooseTasks(int taskId, TridentTuple tup) {
+			return wrapped.chooseTasks(taskId, tup);
+		}
+		
+		/**
+		 * Same value as tup.select(gr_fields).hashCode() without building the list.
+		 */
+		int hash(TridentTuple tup) {
+			int h = 1;
+			for (String f : gr_fields) {
+				Object v = tup.getValueByField(f);
+				h = 31 * h + (v == null ? 0 : v.hashCode());
+			}
+			return h;
+		}
+		
+		int slot(int h) {
+			switch (routing) {
+			case KEY_GROUP:
+				int kg = (mix(h) & Integer.MAX_VALUE) % key_groups;
+				return (int) ((long) kg * num_tasks / key_groups);
+			case CONSISTENT:
+				int p = Arrays.binarySearch(ring, mix(h));
+				if (p < 0) p = -p - 1;
+				if (p == ring.length) p = 0;
+				return ringOwner[p];
+			default:
+				return Math.abs(h % num_tasks);
+			}
+		}
+		
+		static int mix(int h) {
+			// Murmur3 finalizer.
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
 	}
 	
 	public void prepare(Map stormConf, TopologyContext context,
@@ -119,7 +447,7 @@ public class Binner {
 		
 		// Determine the downstream subscribers.
 		for (Entry<String, Grouping> ent : context.getThisTargets().get(exposedName).entrySet()) {
-			Grouper gr = new Grouper(ent.getValue());
+			Grouper gr = new Grouper(ent.getValue(), stormConf);
 			gr.prepare(context, new GlobalStreamId(context.getThisComponentId(), exposedName), 
 					context.getComponentTasks(ent.getKey()));
 			groupings.add(gr);
@@ -131,57 +459,256 @@ public class Binner {
 		// Pull any configuration overrides.
 		Number conf_int = (Number) stormConf.get(WRITE_THRESH_CONF);
 		if (conf_int != null) _write_thresh = conf_int.intValue(); 
+		if (stormConf.containsKey(COLUMNAR_CONF)) {
+			String v = stormConf.get(COLUMNAR_CONF).toString().substring(0, 1);
+			columnar = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		if (stormConf.get(CODEC_CONF) != null) {
+			String name = stormConf.get(CODEC_CONF).toString();
+			if (!name.equalsIgnoreCase("none")) {
+				codec = BinCompressor.forName(name);
+			}
+		}
+		conf_int = (Number) stormConf.get(COMPRESS_MIN_BYTES_CONF);
+		if (conf_int != null) compress_min_bytes = conf_int.intValue(); 
+		conf_int = (Number) stormConf.get(COMPRESS_MAX_RATIO_CONF);
+		if (conf_int != null) compress_max_ratio = conf_int.doubleValue(); 
+		conf_int = (Number) stormConf.get(ASYNC_RING_SIZE_CONF);
+		if (conf_int != null) ring_size = conf_int.intValue(); 
+		conf_int = (Number) stormConf.get(ASYNC_READY_BYTES_CONF);
+		if (conf_int != null) ready_bytes = conf_int.longValue(); 
+		if (stormConf.containsKey(ASYNC_CONF)) {
+			String v = stormConf.get(ASYNC_CONF).toString().substring(0, 1);
+			async = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		
+		if (async) {
+			List<Integer> dests = new ArrayList<Integer>();
+			for (Entry<String, Grouping> ent : context.getThisTargets().get(exposedName).entrySet()) {
+				dests.addAll(context.getComponentTasks(ent.getKey()));
+			}
+			encoder = new Encoder(dests);
+		}
 	}
 
 	public void emit(TridentTuple tup, Tuple anchor) throws IOException {
+		if (encoder != null) {
+			encoder.check();
+		}
+		
 		for (Grouper gr : groupings) {
 			// Calculate the destinations.
-			for (Integer dest : gr.chooseTasks(taskId, tup)) {				
-				// Pull the current buffer.
-				OutCollector curOut = bins.get(dest);
-				if (curOut == null) {
-					curOut = new OutCollector(tup.get(0));
-					bins.put(dest, curOut);
+			if (gr.isSingle()) {
+				int slot = gr.chooseSlot(tup);
+				route(gr.task(slot), gr.routeKey(slot, tup), tup, anchor);
+			} else {
+				for (Integer dest : gr.chooseTasks(taskId, tup)) {
+					route(dest, tup.get(0), tup, anchor);
 				}
+			}
+		}
+		
+		if (encoder != null) {
+			// Send along whatever the encoder has finished so far.
+			encoder.emitReady(anchor);
+		}
+	}
+	
+	private void route(Integer dest, Object aKey, TridentTuple tup, Tuple anchor) {
+		if (encoder != null) {
+			encoder.offer(dest, aKey, tup, anchor);
+		} else {
+			write(dest, aKey, tup, anchor);
+		}
+	}
+	
+	private void write(Integer dest, Object aKey, TridentTuple tup, Tuple anchor) {
+		// Pull the current buffer.
+		OutCollector curOut = bins.get(dest);
+		if (curOut == null) {
+			curOut = pool.pollFirst();
+			if (curOut == null) {
+				curOut = new OutCollector();
+			}
+			curOut.reset(aKey);
+			bins.put(dest, curOut);
+		}
 
-				// write the data out.
-				_ser.serializeInto(tup, curOut.out);
+		if (columnar) {
+			curOut.col.add(tup);
+		} else {
+			// write the data out behind a length placeholder.
+			Output out = curOut.out;
+			int start = out.position();
+			out.writeInt(0);
+			_ser.serializeInto(tup, out);
+			putInt(out.getBuffer(), start, out.position() - start - 4);
+			curOut.count++;
+		}
 
-				// Determine if we need to flush this buffer
-				if (curOut.out.position() > _write_thresh) {
-					bins.remove(dest);
-					_flush(curOut, anchor);
-				}
-			}
+		// Determine if we need to flush this buffer
+		if (curOut.size() > _write_thresh) {
+			bins.remove(dest);
+			_flush(curOut, anchor);
 		}
 	}
 
+	static void putInt(byte[] buf, int off, int v) {
+		buf[off] = (byte) (v >>> 24);
+		buf[off + 1] = (byte) (v >>> 16);
+		buf[off + 2] = (byte) (v >>> 8);
+		buf[off + 3] = (byte) v;
+	}
+	
 	private void _flush(OutCollector curOut, Tuple anchor) {
-		// Emit curOut.
-		collector.emit(exposedName, anchor, new Values(curOut.aKey, curOut.out.toBytes()));
+		// Emit curOut.  Storm keeps a reference to what we emit, so this is
+		// the one copy; the buffers themselves go back to the pool.
+		byte[] bin;
+		if (columnar) {
+			byte[] raw = curOut.col.toBytes();
+			bin = compress(raw, raw.length);
+			if (bin == null) {
+				bin = raw;
+			}
+		} else {
+			putInt(curOut.out.getBuffer(), 0, curOut.count);
+			bin = compress(curOut.out.getBuffer(), curOut.out.position());
+			if (bin == null) {
+				bin = curOut.out.toBytes();
+			}
+		}
+		if (encoder != null) {
+			// Off the bolt thread, let it do the emit.
+			encoder.add(new Values(curOut.aKey, bin), bin.length);
+		} else {
+			collector.emit(exposedName, anchor, new Values(curOut.aKey, bin));
+		}
+		
+		curOut.aKey = null;
+		if (curOut.capacity() <= 2 * (_write_thresh + HEADER_SIZE)) {
+			// Don't hang on to buffers an oversized record has blown up.
+			pool.addLast(curOut);
+		}
+	}
+	
+	/**
+	 * Compress buf[0, len) if it is worth it, otherwise return null.
+	 */
+	byte[] compress(byte[] buf, int len) {
+		if (codec == null || len < compress_min_bytes) {
+			return null;
+		}
+		if (poor_streak >= POOR_LIMIT && ++skipped % SKIP_SAMPLE != 0) {
+			// This stream hasn't been compressing, only check occasionally.
+			return null;
+		}
+		
+		int limit = Math.min(codec.maxCompressedLength(len), (int) (len * compress_max_ratio));
+		if (scratch.length < COMPRESSED_HEADER_SIZE + codec.maxCompressedLength(len)) {
+			scratch = new byte[COMPRESSED_HEADER_SIZE + codec.maxCompressedLength(len)];
+		}
+		int n = codec.compress(buf, len, scratch, COMPRESSED_HEADER_SIZE);
+		if (n < 0 || n > limit) {
+			poor_streak++;
+			return null;
+		}
+		poor_streak = 0;
+		
+		putInt(scratch, 0, COMPRESSED);
+		scratch[4] = codec.id();
+		putInt(scratch, 5, len);
+		return Arrays.copyOf(scratch, COMPRESSED_HEADER_SIZE + n);
 	}
 	
 	public void flush(Tuple input) {
+		if (encoder != null) {
+			// Wait on the encoder to finish up every bin.
+			encoder.flush(input);
+			return;
+		}
+		
 		// Flush all the bins.
 		for (Entry<Integer, OutCollector> ent : bins.entrySet()) {
 			_flush(ent.getValue(), input);
 		}
 		bins.clear();
 	}
+	
+	/**
+	 * Stop the encoder thread, if there is one.
+	 */
+	public void cleanup() {
+		if (encoder != null) {
+			encoder.stop();
+			encoder = null;
+		}
+	}
 
+	/**
+	 * Walks the records in a bin, row or columnar.  A single Input is
+	 * reused for every bin.
+	 */
 	public static class BinDecoder {
 		private KryoValuesDeserializer _deser;
+		private Input in = new Input();
+		private int remaining = 0;
+		private ColumnarBin.Reader colReader;
+		private boolean columnar = false;
+		// Decompression state, by codec id.
+		private BinCompressor[] codecs = new BinCompressor[4];
+		private byte[] raw = new byte[0];
 
 		public BinDecoder(Map stormConf) {
 			_deser = new KryoValuesDeserializer(stormConf);
+			colReader = new ColumnarBin.Reader(_deser);
+		}
+		
+		public void reset(byte[] bin) {
+			in.setBuffer(bin);
+			remaining = bin.length >= HEADER_SIZE ? in.readInt() : 0;
+			if (remaining == COMPRESSED) {
+				byte id = in.readByte();
+				int len = in.readInt();
+				if (id < 0 || id >= codecs.length) {
+					throw new RuntimeException("Unknown bin codec id: " + id);
+				}
+				if (codecs[id] == null) {
+					codecs[id] = BinCompressor.forId(id);
+				}
+				if (raw.length < len) {
+					raw = new byte[len];
+				}
+				codecs[id].decompress(bin, COMPRESSED_HEADER_SIZE, bin.length - COMPRESSED_HEADER_SIZE, raw, len);
+				
+				// The decompressed bin is only good until the next reset.
+				in.setBuffer(raw, 0, len);
+				remaining = len >= HEADER_SIZE ? in.readInt() : 0;
+			}
+			columnar = remaining < 0;
+			if (columnar) {
+				// Columnar bins store the complemented count.
+				colReader.reset(in, ~remaining);
+				remaining = 0;
+			}
 		}
 		
-		public List<Object> decodeList(Input in) {
-			if (in.position() >= in.limit()) {
+		public List<Object> next() {
+			if (columnar) {
+				return colReader.next();
+			}
+			if (remaining == 0) {
 				return null;
 			}
-
-			return _deser.deserializeFrom(in);
+			remaining--;
+			
+			int len = in.readInt();
+			int end = in.position() + len;
+			List<Object> ret = _deser.deserializeFrom(in);
+			if (in.position() != end) {
+				throw new RuntimeException("Corrupt bin record: expected " + len + 
+						" bytes, read " + (in.position() - end + len));
+			}
+			return ret;
 		}
 	}
 		
@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.binner;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.HDataType;
+import org.apache.pig.impl.io.NullableIntWritable;
+import org.apache.pig.impl.io.NullableLongWritable;
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.impl.io.PigNullableWritable;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import backtype.storm.serialization.KryoValuesDeserializer;
+import backtype.storm.serialization.KryoValuesSerializer;
+import backtype.storm.tuple.Values;
+
+/**
+ * Column-wise bin encoding.  Every tuple on an exposed stream has the same
+ * arity, so the values of each field are written together into their own
+ * buffer with a one byte tag and a type specific encoding: varints for
+ * integers, a per-bin dictionary for strings and Text, and the Writable
+ * form for other Pig types.  Anything else falls back to Kryo.
+ *
+ * Layout: ~count, the number of columns, then each column as an int
+ * length and its bytes.  The complemented count tells BinDecoder this
+ * isn't a row bin.
+ */
+public class ColumnarBin {
+	static final byte NULL = 0;
+	static final byte INT = 1;
+	static final byte LONG = 2;
+	static final byte STRING = 3;
+	static final byte N_TEXT = 4;
+	static final byte N_INT = 5;
+	static final byte N_LONG = 6;
+	static final byte N_OTHER = 7;
+	static final byte KRYO = 8;
+
+	static final byte IS_NULL = 1;
+
+	static class Column {
+		Output out;
+		DataOutputStream dout;
+		Map<String, Integer> dict = new HashMap<String, Integer>();
+
+		Column(int cap) {
+			out = new Output(cap, -1);
+			dout = new DataOutputStream(out);
+		}
+
+		void reset() {
+			out.clear();
+			dict.clear();
+		}
+
+		void writeString(String s) {
+			// 0 introduces a new entry, otherwise it is the entry id + 1.
+			Integer id = dict.get(s);
+			if (id == null) {
+				dict.put(s, dict.size());
+				out.writeVarInt(0, true);
+				out.writeString(s);
+			} else {
+				out.writeVarInt(id + 1, true);
+			}
+		}
+	}
+
+	public static class Writer {
+		private KryoValuesSerializer _ser;
+		private Values single = new Values((Object) null);
+		private int cap;
+		Column[] cols = new Column[0];
+		int count = 0;
+
+		public Writer(KryoValuesSerializer ser, int cap) {
+			_ser = ser;
+			this.cap = cap;
+		}
+
+		public void reset() {
+			count = 0;
+			for (Column c : cols) {
+				c.reset();
+			}
+		}
+
+		public void add(List<Object> tup) {
+			if (count == 0 && cols.length != tup.size()) {
+				cols = new Column[tup.size()];
+				for (int i = 0; i < cols.length; i++) {
+					cols[i] = new Column(Math.max(64, cap / cols.length));
+				}
+			} else if (cols.length != tup.size()) {
+				throw new RuntimeException("Tuple arity changed within a bin: " +
+						tup.size() + " != " + cols.length);
+			}
+
+			for (int i = 0; i < cols.length; i++) {
+				try {
+					write(cols[i], tup.get(i));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			count++;
+		}
+
+		void write(Column c, Object o) throws IOException {
+			Output out = c.out;
+			if (o == null) {
+				out.writeByte(NULL);
+			} else if (o.getClass() == Integer.class) {
+				out.writeByte(INT);
+				out.writeVarInt((Integer) o, false);
+			} else if (o.getClass() == Long.class) {
+				out.writeByte(LONG);
+				out.writeVarLong((Long) o, false);
+			} else if (o.getClass() == String.class) {
+				out.writeByte(STRING);
+				c.writeString((String) o);
+			} else if (o instanceof PigNullableWritable) {
+				writePNW(c, (PigNullableWritable) o);
+			} else {
+				writeKryo(c, o);
+			}
+		}
+
+		void writePNW(Column c, PigNullableWritable pnw) throws IOException {
+			Output out = c.out;
+			Class<?> klazz = pnw.getClass();
+			byte flags = pnw.isNull() ? IS_NULL : 0;
+
+			if (klazz == NullableText.class || klazz == NullableIntWritable.class ||
+					klazz == NullableLongWritable.class) {
+				out.writeByte(klazz == NullableText.class ? N_TEXT :
+					(klazz == NullableIntWritable.class ? N_INT : N_LONG));
+				out.writeByte(flags);
+				out.writeByte(pnw.getIndex());
+				if (pnw.isNull()) {
+					return;
+				}
+
+				Object v = pnw.getValueAsPigType();
+				if (klazz == NullableText.class) {
+					c.writeString((String) v);
+				} else if (klazz == NullableIntWritable.class) {
+					out.writeVarInt((Integer) v, false);
+				} else {
+					out.writeVarLong((Long) v, false);
+				}
+				return;
+			}
+
+			byte type;
+			try {
+				type = HDataType.findTypeFromNullableWritable(pnw);
+			} catch (ExecException e) {
+				writeKryo(c, pnw);
+				return;
+			}
+			out.writeByte(N_OTHER);
+			out.writeByte(type);
+			pnw.write(c.dout);
+		}
+
+		void writeKryo(Column c, Object o) {
+			c.out.writeByte(KRYO);
+			single.set(0, o);
+			_ser.serializeInto(single, c.out);
+			single.set(0, null);
+		}
+
+		public int size() {
+			int sz = 0;
+			for (Column c : cols) {
+				sz += c.out.position();
+			}
+			return sz;
+		}
+
+		public int capacity() {
+			int sz = 0;
+			for (Column c : cols) {
+				sz += c.out.getBuffer().length;
+			}
+			return sz;
+		}
+
+		public byte[] toBytes() {
+			Output ret = new Output(8 + 4 * cols.length + size());
+			ret.writeInt(~count);
+			ret.writeInt(cols.length);
+			for (Column c : cols) {
+				ret.writeInt(c.out.position());
+				ret.writeBytes(c.out.getBuffer(), 0, c.out.position());
+			}
+			return ret.getBuffer();
+		}
+	}
+
+	public static class Reader {
+		private KryoValuesDeserializer _deser;
+		private DataInputStream din;
+		private Object[][] cols = new Object[0][];
+		private List<String> dict = new ArrayList<String>();
+		private int count = 0;
+		private int row = 0;
+
+		public Reader(KryoValuesDeserializer deser) {
+			_deser = deser;
+		}
+
+		/**
+		 * Decode every column of the bin.  in is positioned just after the count.
+		 */
+		public void reset(Input in, int count) {
+			this.count = count;
+			row = 0;
+			din = new DataInputStream(in);
+
+			int ncols = in.readInt();
+			if (cols.length != ncols) {
+				cols = new Object[ncols][];
+			}
+
+			for (int i = 0; i < ncols; i++) {
+				if (cols[i] == null || cols[i].length < count) {
+					cols[i] = new Object[count];
+				}
+
+				int len = in.readInt();
+				int end = in.position() + len;
+				dict.clear();
+				try {
+					for (int j = 0; j < count; j++) {
+						cols[i][j] = read(in);
+					}
+				} catch (Exception e) {
+					throw new RuntimeException("Unable to decode column " + i, e);
+				}
+				if (in.position() != end) {
+					throw new RuntimeException("Corrupt bin column " + i + ": expected " + len +
+							" bytes, read " + (in.position() - end + len));
+				}
+			}
+		}
+
+		String readString(Input in) {
+			int id = in.readVarInt(true);
+			if (id == 0) {
+				String s = in.readString();
+				dict.add(s);
+				return s;
+			}
+			return dict.get(id - 1);
+		}
+
+		Object read(Input in) throws Exception {
+			byte tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case INT:
+				return in.readVarInt(false);
+			case LONG:
+				return in.readVarLong(false);
+			case STRING:
+				return readString(in);
+			case N_TEXT:
+			case N_INT:
+			case N_LONG:
+				byte flags = in.readByte();
+				byte idx = in.readByte();
+				PigNullableWritable pnw;
+				if ((flags & IS_NULL) != 0) {
+					pnw = tag == N_TEXT ? new NullableText() :
+						(tag == N_INT ? new NullableIntWritable() : new NullableLongWritable());
+					pnw.setNull(true);
+				} else if (tag == N_TEXT) {
+					pnw = new NullableText(readString(in));
+				} else if (tag == N_INT) {
+					pnw = new NullableIntWritable(in.readVarInt(false));
+				} else {
+					pnw = new NullableLongWritable(in.readVarLong(false));
+				}
+				pnw.setIndex(idx);
+				return pnw;
+			case N_OTHER:
+				byte type = in.readByte();
+				PigNullableWritable other = HDataType.getWritableComparableTypes(type).getClass().newInstance();
+				other.readFields(din);
+				return other;
+			case KRYO:
+				return _deser.deserializeFrom(in).get(0);
+			default:
+				throw new RuntimeException("Unknown column tag: " + tag);
+			}
+		}
+
+		public List<Object> next() {
+			if (row >= count) {
+				return null;
+			}
+
+			Values ret = new Values();
+			for (Object[] col : cols) {
+				ret.add(col[row]);
+				// Don't hold on to the values once handed out.
+				col[row] = null;
+			}
+			row++;
+			return ret;
+		}
+	}
+}
@@ -28,6 +28,7 @@ import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pig.piggybank.squeal.backend.storm.io.ImprovedRichSpoutBatchExecutor;
+import org.apache.pig.piggybank.squeal.binner.BinGrouping;
 import org.apache.pig.piggybank.squeal.flexy.model.FStream;
 import org.apache.pig.piggybank.squeal.flexy.topo.FlexyBolt;
 import org.apache.pig.piggybank.squeal.flexy.topo.FlexyMasterSpout;
@@ -122,12 +123,51 @@ public class FlexyTopology {
 		}
 	}
 	
+	private void fuseProjections(DefaultDirectedGraph<FStream, IndexedEdge<FStream>> G) {
+		// Collapse runs of projections into their last one first, so a
+		// function followed by any number of them fuses below.
+		fuseInto(G, FStream.NodeType.PROJECTION);
+		// Fold each projection into the function feeding it so the
+		// projected tuple is built directly rather than through views.
+		fuseInto(G, FStream.NodeType.FUNCTION);
+	}
+	
+	private void fuseInto(DefaultDirectedGraph<FStream, IndexedEdge<FStream>> G, FStream.NodeType type) {
+		ArrayDeque<FStream> work = new ArrayDeque<FStream>(G.vertexSet());
+		while (!work.isEmpty()) {
+			FStream n = work.poll();
+			if (!G.containsVertex(n) || n.getType() != type || G.outDegreeOf(n) != 1) {
+				continue;
+			}
+			FStream proj = G.outgoingEdgesOf(n).iterator().next().target;
+			if (proj.getType() != FStream.NodeType.PROJECTION || G.inDegreeOf(proj) != 1) {
+				continue;
+			}
+			
+			FStream fused = n.fuse(proj);
+			// A fused projection may take the next one in the run.
+			work.addFirst(fused);
+			G.addVertex(fused);
+			for (IndexedEdge<FStream> in_edge : new ArrayList<IndexedEdge<FStream>>(G.incomingEdgesOf(n))) {
+				link(G, in_edge.source, fused);
+			}
+			for (IndexedEdge<FStream> out_edge : new ArrayList<IndexedEdge<FStream>>(G.outgoingEdgesOf(proj))) {
+				link(G, fused, out_edge.target);
+			}
+			
+			// Removing the vertices takes their edges along.
+			G.removeVertex(n);
+			G.removeVertex(proj);
+		}
+	}
+	
 	private void logicalToBoltGraph() {
 		// Convert the logical graph to a bolt graph.
 		DefaultDirectedGraph<FStream, IndexedEdge<FStream>> G = (DefaultDirectedGraph<FStream, IndexedEdge<FStream>>) _graph.clone();
 		int bolt_counter = 0;
 
 		removeMerges(G);
+		fuseProjections(G);
 		
 		ArrayDeque<FStream> stack = new ArrayDeque<FStream>();
 				
@@ -256,7 +296,8 @@ public class FlexyTopology {
 			if (b.getRoot().getType() == FStream.NodeType.SHUFFLE) {
 				b_builder.shuffleGrouping(source_name, source_stream);
 			} else if (b.getRoot().getType() == FStream.NodeType.GROUPBY) {
-				b_builder.fieldsGrouping(source_name, source_stream, b.getRoot().getGroupingFields());
+				// Binner picks the task, the grouping reads its choice off the bin.
+				b_builder.customGrouping(source_name, source_stream, new BinGrouping(b.getRoot().getGroupingFields()));
 			}
 		}
 		
@@ -273,8 +314,16 @@ public class FlexyTopology {
 		// Now, convert the bolt graph to a topology.		
 		TopologyBuilder builder = new TopologyBuilder();
 		
+		// Stage1 state is shared by every batch that reaches it, find out if there is any.
+		boolean stateful = false;
+		for (FlexyBolt b : boltG.vertexSet()) {
+			if (b.getRoot().getType() == FStream.NodeType.GROUPBY) {
+				stateful = true;
+			}
+		}
+		
 		// Create the coordinator spout.
-		builder.setSpout("FlexyMaster", new FlexyMasterSpout());
+		builder.setSpout("FlexyMaster", new FlexyMasterSpout(stateful));
 		
 		// Start from the leaves and walk to the spouts using DFS.
 		Set<FlexyBolt> built_memo = new HashSet<FlexyBolt>();
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.flexy.executors;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Holds partial aggregates keyed by group key until they are evicted
+ * (size, expiry or an explicit flush) and handed to the listener.
+ */
+public interface CombinerStore<T> {
+
+	public interface EvictionListener<T> {
+		public void onEvict(Writable key, T value);
+	}
+
+	/**
+	 * Fetch the current value for key, inserting the aggregator's zero if absent.
+	 */
+	public T get(Writable key);
+
+	/**
+	 * Replace the value for key.
+	 */
+	public void put(Writable key, T value);
+
+	/**
+	 * Evict any expired entries.
+	 */
+	public void cleanUp();
+
+	/**
+	 * Evict everything.
+	 */
+	public void invalidateAll();
+
+	public long size();
+
+	public String stats();
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.flexy.executors;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Writable;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import storm.trident.operation.CombinerAggregator;
+
+/**
+ * The original Stage0 store: a Guava LoadingCache with a removal listener.
+ */
+public class GuavaCombinerStore<T> implements CombinerStore<T>, RemovalListener<Writable, T> {
+	private LoadingCache<Writable, T> cache;
+	private EvictionListener<T> listener;
+
+	public GuavaCombinerStore(final CombinerAggregator<T> agg, int max_size, int expiry_ms,
+			boolean recordStats, EvictionListener<T> listener) {
+		this.listener = listener;
+
+		CacheBuilder<Writable, T> cb = CacheBuilder.newBuilder()
+				.maximumSize(max_size)
+				.expireAfterWrite(expiry_ms, TimeUnit.MILLISECONDS)
+				.removalListener(this);
+
+		if (recordStats) {
+			try {
+				cb = cb.recordStats();
+			} catch (NoSuchMethodError e) {
+				// FIXME: Guava/assembly confusion...
+			}
+		}
+
+		cache = cb
+				.build(new CacheLoader<Writable, T>() {
+					@Override
+					public T load(Writable key) throws Exception {
+						return agg.zero();
+					}
+				});
+	}
+
+	@Override
+	public T get(Writable key) {
+		try {
+			return cache.get(key);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	@Override
+	public void put(Writable key, T value) {
+		cache.put(key, value);
+	}
+
+	@Override
+	public void cleanUp() {
+		cache.cleanUp();
+	}
+
+	@Override
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public long size() {
+		return cache.size();
+	}
+
+	@Override
+	public String stats() {
+		return cache.stats().toString();
+	}
+
+	@Override
+	public void onRemoval(RemovalNotification<Writable, T> note) {
+		if (!(note.wasEvicted() || note.getCause() == RemovalCause.EXPLICIT)) {
+			return;
+		}
+
+		listener.onEvict(note.getKey(), note.getValue());
+	}
+}
@@ -28,6 +28,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Writable;
 import org.apache.pig.piggybank.squeal.backend.storm.io.ImprovedRichSpoutBatchExecutor.CaptureCollector;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.BatchFunction;
 import org.apache.pig.piggybank.squeal.binner.Binner;
 import org.apache.pig.piggybank.squeal.binner.Binner.BinDecoder;
 import org.apache.pig.piggybank.squeal.flexy.model.FStream;
@@ -35,13 +36,14 @@ import org.apache.pig.piggybank.squeal.flexy.model.FStream.NodeType;
 import org.apache.pig.piggybank.squeal.flexy.topo.FlexyBolt;
 import org.jgrapht.graph.DefaultDirectedGraph;
 
-import com.esotericsoftware.kryo.io.Input;
-
 import backtype.storm.spout.ISpoutWaitStrategy;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.IRichSpout;
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
+import storm.trident.operation.Function;
 import storm.trident.operation.TridentCollector;
 import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
@@ -51,40 +53,36 @@ import storm.trident.tuple.TridentTupleView.OperationOutputFactory;
 import storm.trident.tuple.TridentTupleView.ProjectionFactory;
 import storm.trident.util.IndexedEdge;
 
-public class PipelineExecutor implements TridentCollector {
-	private FStream cur;
-	private List<PipelineExecutor> children;
-	//	private OutputCollector collector;  TODO: Remove this.
-	//	private TridentTuple.Factory output_tf;
-	private Map stormConf;
-	private TopologyContext context;
+/**
+ * Runs the part of the logical plan that lives in one FlexyBolt.  There is
+ * one subclass per node type, built once by build(), so the per tuple path
+ * is a direct call into the node rather than a switch on its type.
+ */
+public abstract class PipelineExecutor implements TridentCollector {
+	protected FStream cur;
+	protected PipelineExecutor[] children;
+	// Most nodes have exactly one child, skip the loop for those.
+	protected PipelineExecutor only;
+	protected Map stormConf;
+	protected TopologyContext context;
 	private static final Log log = LogFactory.getLog(PipelineExecutor.class);
 
-	// Spout stuff
-	CaptureCollector _collector = new CaptureCollector();
-	private int maxBatchSize;
 	public static final String MAX_BATCH_SIZE_CONF = "topology.spout.max.batch.size";
 	static public final int DEFAULT_MAX_BATCH_SIZE = 1000;
+	// Blocks for BatchFunctions, off unless set above 1.
+	public static final String BLOCK_SIZE_CONF = "flexy.function.block.size";
+	static public final int DEFAULT_BLOCK_SIZE = 0;
 
-	// Assume single active batch at this time.
-	private Map<Long, List<Object>> idsMap = new HashMap<Long, List<Object>>();
-	private OperationOutputFactory op_output_tf;
-	private ProjectionFactory proj_output_tf;
-	private FreshOutputFactory root_output_tf;
-	private TridentTuple parent;
-	private String exposedName;
-	private Stage0Executor stage0Exec;
-	private Stage1Executor stage1Exec;
-	private FreshOutputFactory parent_root_tf;
-	private Binner binner;
-	private BinDecoder binDecoder;
-	private Tuple anchor;
-	private int emptyStreak = 0;
-	private ISpoutWaitStrategy waitStrategy = null;
-
-	private PipelineExecutor(FStream cur, List<PipelineExecutor> children) {
+	protected String exposedName;
+	protected Binner binner;
+	protected BinDecoder binDecoder;
+	protected FreshOutputFactory parent_root_tf;
+	protected Tuple anchor;
+
+	PipelineExecutor(FStream cur, List<PipelineExecutor> children) {
 		this.cur = cur;
-		this.children = children;
+		this.children = children.toArray(new PipelineExecutor[children.size()]);
+		this.only = this.children.length == 1 ? this.children[0] : null;
 	}
 
 	public void prepare(Map stormConf, TopologyContext context, OutputCollector collector,
@@ -92,7 +90,7 @@ public class PipelineExecutor implements TridentCollector {
 		prepare(stormConf, context, collector, null, flexyBolt);
 	}
 
-	private void prepare(Map stormConf, TopologyContext context, 
+	void prepare(Map stormConf, TopologyContext context, 
 			OutputCollector collector, TridentTuple.Factory parent_tf,
 			FlexyBolt flexyBolt) {			
 
@@ -106,136 +104,54 @@ public class PipelineExecutor implements TridentCollector {
 			binner.prepare(stormConf, context, collector, exposedName);
 		}
 
-		binDecoder = new Binner.BinDecoder(stormConf);
-
-		// Stash this for use later.  TODO: Remove this.
-		//		this.collector = collector;
-
 		if (parent_tf == null && cur.getType() != NodeType.SPOUT) {
-//			log.info("NULL tf: " + cur + " " + flexyBolt.getInputSchema());
+			// The head of a bolt, tuples arrive in bins.
 			parent_tf = parent_root_tf = new TridentTupleView.FreshOutputFactory(flexyBolt.getInputSchema());
+			binDecoder = new Binner.BinDecoder(stormConf);
 		}
 
-		TridentOperationContext triContext = new TridentOperationContext(context, parent_tf);
-
-		TridentTuple.Factory output_tf;
 		// Create an output tuple factory.
-		switch (cur.getType()) {
-		case FUNCTION:
-			cur.getFunc().prepare(stormConf, triContext);
-			// Create a projection for the input.
-			proj_output_tf = triContext.makeProjectionFactory(cur.getInputFields());
-			op_output_tf = new TridentTupleView.OperationOutputFactory(parent_tf, cur.getAppendOutputFields());
-			output_tf = op_output_tf;
-			break;
-		case GROUPBY:
-			proj_output_tf = triContext.makeProjectionFactory(cur.getInputFields());
-			root_output_tf = new TridentTupleView.FreshOutputFactory(cur.getOutputFields());
-			output_tf = root_output_tf;
-
-			// Prepare the agg stuff.
-			if (cur.getIsStage0Agg()) {
-				this.stage0Exec = new Stage0Executor(cur.getStage0Agg());
-				stage0Exec.prepare(stormConf, context, this);
-			} else {
-				this.stage1Exec = new Stage1Executor(cur.getStage1Agg(), cur.getStorageAgg(), cur.getStateFactory());
-				stage1Exec.prepare(stormConf, context, this);
-			}
-
-			break;
-		case PROJECTION:
-			proj_output_tf = triContext.makeProjectionFactory(cur.getAppendOutputFields());
-			output_tf = proj_output_tf;
-			break;
-		case SPOUT:
-			Number batchSize = (Number) stormConf.get(MAX_BATCH_SIZE_CONF);
-			if(batchSize==null) batchSize = DEFAULT_MAX_BATCH_SIZE;
-			maxBatchSize = batchSize.intValue();
-
-			// Prepare the spout
-			cur.getSpout().open(stormConf, context, new SpoutOutputCollector(_collector));
-
-			root_output_tf = new TridentTupleView.FreshOutputFactory(cur.getAppendOutputFields());
-			output_tf = root_output_tf;
-			
-			// Pull the spout wait strategy and initialize it.
-			if (stormConf.get("topology.spout.wait.strategy") != null) {
-				String klassName = stormConf.get("topology.spout.wait.strategy").toString();
-				try {
-					Class<?> klass = ClassLoader.getSystemClassLoader().loadClass(klassName);
-					waitStrategy = (ISpoutWaitStrategy) klass.newInstance();
-					waitStrategy.prepare(stormConf);
-				} catch (Exception e) {
-					throw new RuntimeException("Unable to instantiate the wait strategy: " + klassName, e);
-				}
-
-			}
-			
-			break;
-		case SHUFFLE:
-			// Do thinging, we'll pass directly to children later.
-			output_tf = null;
-			break;
-		default:
-			throw new RuntimeException("Unknown node type:" + cur.getType());
-		}
+		TridentTuple.Factory output_tf = prepareNode(new TridentOperationContext(context, parent_tf), parent_tf);
 
 		for (PipelineExecutor child : children) {
 			child.prepare(stormConf, context, collector, output_tf, flexyBolt);
 		}
 	}
 
-	public boolean commit(Tuple input) {
-		boolean ret = true;
+	/**
+	 * Node specific setup.
+	 *
+	 * @return the factory for this node's output tuples.
+	 */
+	abstract TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf);
 
-		switch (cur.getType()) {
-		case FUNCTION:
-		case PROJECTION:
-		case SHUFFLE:
-		case SPOUT: // The ack should occur on the next release of a batch in case commit fails.
-			// Do nothing.
-			break;
-		case GROUPBY:
-			if (!cur.getIsStage0Agg()) {
-				stage1Exec.commit(input.getLong(0));
-			}
-			break;
-		default:
-			throw new RuntimeException("Unknown node type:" + cur.getType());
-		}
+	/**
+	 * Process one tuple from the parent node.
+	 */
+	abstract void execute(TridentTuple tup, Tuple anchor);
+
+	public boolean commit(Tuple input) {
+		commitNode(input);
 
 		// Call commit on children.
 		for (PipelineExecutor child : children) {
 			child.commit(input);
 		}
 
-		return ret;
+		return true;
+	}
+
+	void commitNode(Tuple input) {
+		// Only state holding nodes have anything to do.
 	}
 
 	public void flush(Tuple input) {	
 		anchor = input;
 
-		switch (cur.getType()) {
-		case FUNCTION:
-		case PROJECTION:
-		case SHUFFLE:
-		case SPOUT:
-			// Do nothing.
-			break;
-		case GROUPBY:
-			//			log.info("flush: " + cur);
-			if (cur.getIsStage0Agg()) {
-				stage0Exec.flush();
-			} else {
-				stage1Exec.flush();
-			}
-			break;
-		default:
-			throw new RuntimeException("Unknown node type:" + cur.getType());
-		}
+		flushNode();
 
 		// Flush any outstanding messages.
-		if (exposedName != null) {
+		if (binner != null) {
 			binner.flush(input);
 		}
 
@@ -247,98 +163,428 @@ public class PipelineExecutor implements TridentCollector {
 		anchor = null;
 	}
 
-	private void execute(TridentTuple tup, Tuple anchor) {
-		//		log.info("execute: " + cur + " " + tup);
-
-		this.anchor = anchor;
-		try {
-			parent = tup;
-
-			switch (cur.getType()) {
-			case FUNCTION:
-				// Project as appropriate
-				tup = proj_output_tf.create(tup);
-				cur.getFunc().execute(tup, this);
-				break;
-			case GROUPBY:
-				// Pull the key.
-				Writable key = (Writable) tup.getValueByField(cur.getGroupingFields().get(0));
-
-				// Project as appropriate
-				tup = proj_output_tf.create(tup);
-				if (cur.getIsStage0Agg()) {
-					this.stage0Exec.execute(key, tup);
+	void flushNode() {
+		// Only aggregating nodes hold anything back.
+	}
+
+	/**
+	 * Called once every tuple of an input has been through, so nothing
+	 * held back for it outlives the input it is anchored to.
+	 */
+	void finishInput(Tuple input) {
+		finishInputNode(input);
+
+		for (PipelineExecutor child : children) {
+			child.finishInput(input);
+		}
+	}
+
+	void finishInputNode(Tuple input) {
+		// Only nodes buffering blocks have anything to do.
+	}
+
+	public void cleanup() {
+		cleanupNode();
+
+		if (binner != null) {
+			binner.cleanup();
+		}
+
+		// Call cleanup on children.
+		for (PipelineExecutor child : children) {
+			child.cleanup();
+		}
+	}
+
+	void cleanupNode() {
+		// Only nodes holding state or threads have anything to release.
+	}
+
+	/**
+	 * Handle a tuple from Storm: a bin for everything but spouts and shuffles.
+	 *
+	 * @return true if a coord message should be sent.
+	 */
+	public boolean execute(Tuple input) {
+		// Decode the tuples within the bin.
+		binDecoder.reset(input.getBinary(1));
+		List<Object> list;
+		while (null != (list = binDecoder.next())) {
+			// Create the appropriate tuple and move along.
+			execute(parent_root_tf.create(list), input);
+		}
+		finishInput(input);
+		return false;
+	}
+
+	/**
+	 * Hand an output tuple to the children and the binner.
+	 */
+	final void forward(TridentTuple tup) {
+		if (only != null) {
+			only.execute(tup, anchor);
+		} else {
+			for (PipelineExecutor child : children) {
+				child.execute(tup, anchor);
+			}
+		}
+
+		// Emit if necessary.
+		if (binner != null) {
+			try {
+				binner.emit(tup, anchor);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public void reportError(Throwable t) {
+		t.printStackTrace();
+		// Let the flexy bolt clean this mess up.
+		throw new RuntimeException(t);
+	}
+
+	static final class FunctionExecutor extends PipelineExecutor implements BatchFunction.BatchCollector {
+		private Function func;
+		// Batch capable functions get their input in blocks, held here until
+		// the block fills or the node is flushed.
+		private BatchFunction batch_func;
+		private int block_size;
+		private List<TridentTuple> block_parents;
+		private List<TridentTuple> block_inputs;
+		private ProjectionFactory proj_input_tf;
+		private OperationOutputFactory op_output_tf;
+		private TridentTuple parent;
+		// With a projection fused in (see FlexyTopology), where each projected
+		// field comes from: a parent index, or ~index into the function's output.
+		private FreshOutputFactory fused_output_tf;
+		private int[] proj_src;
+
+		FunctionExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+			func = cur.getFunc();
+		}
+
+		@Override
+		TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf) {
+			func.prepare(stormConf, triContext);
+			// Create a projection for the input, unless it's the parent as is.
+			if (!parent_tf.getOutputFields().equals(cur.getInputFields().toList())) {
+				proj_input_tf = triContext.makeProjectionFactory(cur.getInputFields());
+			}
+
+			Number conf_int = (Number) stormConf.get(BLOCK_SIZE_CONF);
+			block_size = conf_int == null ? DEFAULT_BLOCK_SIZE : conf_int.intValue();
+			if (func instanceof BatchFunction && block_size > 1) {
+				batch_func = (BatchFunction) func;
+				block_parents = new ArrayList<TridentTuple>(block_size);
+				block_inputs = new ArrayList<TridentTuple>(block_size);
+			}
+
+			Fields projected = cur.getProjectedOutputFields();
+			if (projected == null) {
+				op_output_tf = new TridentTupleView.OperationOutputFactory(parent_tf, cur.getAppendOutputFields());
+				return op_output_tf;
+			}
+
+			// Function outputs shadow parent fields of the same name.
+			Fields appended = cur.getAppendOutputFields();
+			List<String> parentFields = parent_tf.getOutputFields();
+			proj_src = new int[projected.size()];
+			for (int i = 0; i < proj_src.length; i++) {
+				String field = projected.get(i);
+				if (appended.contains(field)) {
+					proj_src[i] = ~appended.fieldIndex(field);
+				} else if (parentFields.contains(field)) {
+					proj_src[i] = parentFields.indexOf(field);
 				} else {
-					this.stage1Exec.execute(key, tup);
+					throw new RuntimeException("Missing field [" + field + "] in projecting " + 
+							parentFields + " + " + appended + " to " + projected);
+				}
+			}
+			fused_output_tf = new TridentTupleView.FreshOutputFactory(projected);
+			return fused_output_tf;
+		}
+
+		@Override
+		void execute(TridentTuple tup, Tuple anchor) {
+			if (batch_func != null) {
+				block_parents.add(tup);
+				block_inputs.add(proj_input_tf == null ? tup : proj_input_tf.create(tup));
+				if (block_parents.size() >= block_size) {
+					executeBlock(anchor);
 				}
-				break;
-			case PROJECTION:
-				emit(null);
-				break;
-			case SPOUT:
-				throw new RuntimeException("Spouts shouldn't be called in this manner...");
-			default:
-				throw new RuntimeException("Unknown node type:" + cur.getType());
+				return;
+			}
+
+			this.anchor = anchor;
+			try {
+				parent = tup;
+				func.execute(proj_input_tf == null ? tup : proj_input_tf.create(tup), this);
+			} finally {
+				this.anchor = null;
+			}
+		}
+
+		private void executeBlock(Tuple anchor) {
+			if (block_parents.isEmpty()) {
+				return;
+			}
+
+			// A block never spans inputs (see finishInputNode), so its outputs
+			// are anchored to the input every one of its tuples came from.
+			this.anchor = anchor;
+			try {
+				batch_func.executeBatch(block_inputs, this);
+			} finally {
+				this.anchor = null;
+				parent = null;
+				block_parents.clear();
+				block_inputs.clear();
+			}
+		}
+
+		@Override
+		void finishInputNode(Tuple input) {
+			if (batch_func != null) {
+				executeBlock(input);
+			}
+		}
+
+		@Override
+		void flushNode() {
+			// Finish the partial block before the binner and children flush.
+			if (batch_func != null) {
+				executeBlock(anchor);
 			}
-		} finally {
-			this.anchor = null;
+		}
+
+		@Override
+		public void startInput(int i) {
+			parent = block_parents.get(i);
+		}
+
+		@Override
+		public void emit(List<Object> values) {
+			if (fused_output_tf == null) {
+				forward(op_output_tf.create((TridentTupleView) parent, values));
+				return;
+			}
+
+			List<Object> out = new ArrayList<Object>(proj_src.length);
+			for (int src : proj_src) {
+				out.add(src < 0 ? values.get(~src) : parent.get(src));
+			}
+			forward(fused_output_tf.create(out));
 		}
 	}
 
-	public boolean execute(Tuple input) {
-		//		log.info("execute tuple: " + input);
-		boolean ret = false;
+	static final class ProjectionExecutor extends PipelineExecutor {
+		private ProjectionFactory proj_output_tf;
 
-		switch (cur.getType()) {
-		case SHUFFLE:
-			// Pass through to children.
-			for (PipelineExecutor child : children) {
-				child.execute(input);
+		ProjectionExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+		}
+
+		@Override
+		TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf) {
+			proj_output_tf = triContext.makeProjectionFactory(cur.getAppendOutputFields());
+			return proj_output_tf;
+		}
+
+		@Override
+		void execute(TridentTuple tup, Tuple anchor) {
+			this.anchor = anchor;
+			try {
+				forward(proj_output_tf.create(tup));
+			} finally {
+				this.anchor = null;
 			}
-			break;
-		case FUNCTION:
-		case GROUPBY:
-		case PROJECTION:
-			// Decode the tuples within the bin.
-			Input in = new Input(input.getBinary(1));
-			List<Object> list;
-			while (null != (list = binDecoder.decodeList(in))) {
-				// Create the appropriate tuple and move along.
-				execute(parent_root_tf.create(list), input);
+		}
+
+		@Override
+		public void emit(List<Object> values) {
+			throw new RuntimeException("Projections don't take emits: " + cur);
+		}
+	}
+
+	static abstract class GroupByExecutor extends PipelineExecutor {
+		private String keyField;
+		private ProjectionFactory proj_input_tf;
+		private FreshOutputFactory root_output_tf;
+
+		GroupByExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+			keyField = cur.getGroupingFields().get(0);
+		}
+
+		@Override
+		TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf) {
+			proj_input_tf = triContext.makeProjectionFactory(cur.getInputFields());
+			root_output_tf = new TridentTupleView.FreshOutputFactory(cur.getOutputFields());
+			// Prepare the agg stuff.
+			prepareAgg();
+			return root_output_tf;
+		}
+
+		abstract void prepareAgg();
+
+		abstract void aggregate(Writable key, TridentTuple tup);
+
+		@Override
+		void execute(TridentTuple tup, Tuple anchor) {
+			this.anchor = anchor;
+			try {
+				// Pull the key and project as appropriate.
+				Writable key = (Writable) tup.getValueByField(keyField);
+				aggregate(key, proj_input_tf.create(tup));
+			} finally {
+				this.anchor = null;
 			}
+		}
 
-			break;
-		case SPOUT:
+		@Override
+		public void emit(List<Object> values) {
+			forward(root_output_tf.create(values));
+		}
+	}
+
+	static final class Stage0GroupByExecutor extends GroupByExecutor {
+		private Stage0Executor stage0Exec;
+
+		Stage0GroupByExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+		}
+
+		@Override
+		void prepareAgg() {
+			stage0Exec = new Stage0Executor(cur.getStage0Agg());
+			stage0Exec.prepare(stormConf, context, this);
+		}
+
+		@Override
+		void aggregate(Writable key, TridentTuple tup) {
+			stage0Exec.execute(key, tup);
+		}
+
+		@Override
+		void flushNode() {
+			stage0Exec.flush();
+		}
+	}
+
+	static final class Stage1GroupByExecutor extends GroupByExecutor {
+		private Stage1Executor stage1Exec;
+
+		Stage1GroupByExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+		}
+
+		@Override
+		void prepareAgg() {
+			stage1Exec = new Stage1Executor(cur.getStage1Agg(), cur.getStorageAgg(), cur.getStateFactory());
+			stage1Exec.prepare(stormConf, context, this);
+		}
+
+		@Override
+		void aggregate(Writable key, TridentTuple tup) {
+			stage1Exec.execute(key, tup);
+		}
+
+		@Override
+		void flushNode() {
+			stage1Exec.flush();
+		}
+
+		@Override
+		void commitNode(Tuple input) {
+			stage1Exec.commit(input.getLong(0));
+		}
+
+		@Override
+		void cleanupNode() {
+			stage1Exec.cleanup();
+		}
+	}
+
+	static final class SpoutExecutor extends PipelineExecutor {
+		CaptureCollector _collector = new CaptureCollector();
+		private IRichSpout spout;
+		private int maxBatchSize;
+		// Emitted ids by batch until the batch's commit is resolved.
+		private Map<Long, List<Object>> idsMap = new HashMap<Long, List<Object>>();
+		private FreshOutputFactory root_output_tf;
+		private int emptyStreak = 0;
+		private ISpoutWaitStrategy waitStrategy = null;
+
+		SpoutExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
+			spout = cur.getSpout();
+		}
+
+		@Override
+		TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf) {
+			Number batchSize = (Number) stormConf.get(MAX_BATCH_SIZE_CONF);
+			if(batchSize==null) batchSize = DEFAULT_MAX_BATCH_SIZE;
+			maxBatchSize = batchSize.intValue();
+
+			// Prepare the spout
+			spout.open(stormConf, context, new SpoutOutputCollector(_collector));
+
+			root_output_tf = new TridentTupleView.FreshOutputFactory(cur.getAppendOutputFields());
+
+			// Pull the spout wait strategy and initialize it.
+			if (stormConf.get("topology.spout.wait.strategy") != null) {
+				String klassName = stormConf.get("topology.spout.wait.strategy").toString();
+				try {
+					Class<?> klass = ClassLoader.getSystemClassLoader().loadClass(klassName);
+					waitStrategy = (ISpoutWaitStrategy) klass.newInstance();
+					waitStrategy.prepare(stormConf);
+				} catch (Exception e) {
+					throw new RuntimeException("Unable to instantiate the wait strategy: " + klassName, e);
+				}
+			}
+
+			return root_output_tf;
+		}
+
+		@Override
+		void execute(TridentTuple tup, Tuple anchor) {
+			throw new RuntimeException("Spouts shouldn't be called in this manner...");
+		}
+
+		@Override
+		public boolean execute(Tuple input) {
 			this.anchor = input;
 			try {
-				//			log.info("execute tuple spout: " + input);
 				// Check on failures
 				long txid = input.getLong(0);
 				boolean failed = input.getBoolean(1);
+				long last_committed = input.getLong(2);
+				// The master steers the batch size, never beyond our own limit.
+				int batchSize = Math.min(maxBatchSize, input.getInteger(3));
 				// XXX: Assuming batch ids always increase...
-				long last_txid = txid - 1;
-				if(idsMap.containsKey(last_txid)) {
-					if (failed && idsMap.get(last_txid).size() > 0) { 
-						//						log.info("Flushing tuples: " + last_txid + " " + failed + " " + idsMap.get(last_txid).size());
-					}
-					for (Object msgId : idsMap.remove(last_txid)) {
-						if (failed) {
-							cur.getSpout().fail(msgId);
-						} else {
-							cur.getSpout().ack(msgId);
+				// Ack anything committed, fail the earlier batches on failure.
+				for (Long batch : new ArrayList<Long>(idsMap.keySet())) {
+					if (batch <= last_committed) {
+						for (Object msgId : idsMap.remove(batch)) {
+							spout.ack(msgId);
+						}
+					} else if (failed && batch < txid) {
+						for (Object msgId : idsMap.remove(batch)) {
+							spout.fail(msgId);
 						}
 					}
 				}
-				//			if(idsMap.containsKey(txid)) {
-				//                fail(txid);
-				//            }
 
 				// Release some tuples.
 				_collector.reset(this);
 				Exception spoutException = null;
-				for(int i=0; i < maxBatchSize; i++) {
+				for(int i=0; i < batchSize; i++) {
 					try {
-						cur.getSpout().nextTuple();
+						spout.nextTuple();
 					} catch (Exception e) {
 						// Delay this until we have added the emitted ids to the idsMap.
 						spoutException = e;
@@ -348,7 +594,7 @@ public class PipelineExecutor implements TridentCollector {
 						break;
 					}
 				}
-				
+
 				if (_collector.numEmitted == 0) {
 					emptyStreak ++;
 					// Wait if necessary.
@@ -365,7 +611,7 @@ public class PipelineExecutor implements TridentCollector {
 				if (spoutException != null) {
 					// Fail the ids.
 					for (Object msgId : idsMap.remove(txid)) {
-						cur.getSpout().fail(msgId);
+						spout.fail(msgId);
 					}
 					throw new RuntimeException(spoutException);
 				}
@@ -373,59 +619,44 @@ public class PipelineExecutor implements TridentCollector {
 				anchor = null;
 			}
 
-			ret = true;
-			break;
-		default:
-			throw new RuntimeException("Unknown node type:" + cur.getType());
+			return true;
 		}
 
-		return ret;
+		@Override
+		public void emit(List<Object> values) {
+			forward(root_output_tf.create(values));
+		}
 	}
 
-	@Override
-	public void emit(List<Object> values) {
-		//		log.info("Emit: " + cur + " --> " + values + " --> " + exposedName);
-		TridentTuple tup = null;
-		// Use the appropriate output factory to create the next tuple.
-		switch (cur.getType()) {
-		case FUNCTION:
-			tup = op_output_tf.create((TridentTupleView) parent, values);
-			break;
-		case GROUPBY:
-			tup = root_output_tf.create(values);
-			break;
-		case PROJECTION:
-			tup = proj_output_tf.create(parent);
-			break;
-		case SPOUT:
-			tup = root_output_tf.create(values);
-			break;
-		default:
-			throw new RuntimeException("Unknown node type:" + cur.getType());
+	static final class ShuffleExecutor extends PipelineExecutor {
+		ShuffleExecutor(FStream cur, List<PipelineExecutor> children) {
+			super(cur, children);
 		}
 
-		// Call all the children.
-		for (PipelineExecutor child : children) {
-			child.execute(tup, anchor);
+		@Override
+		TridentTuple.Factory prepareNode(TridentOperationContext triContext, TridentTuple.Factory parent_tf) {
+			// Nothing to produce, the bins go straight to the children.
+			return null;
 		}
 
-		// Emit if necessary.
-		if (exposedName != null) {
-			//			log.info("EMIT:" + tup);
-			//			TODO remove: this.collector.emit(exposedName, tup);
-			try {
-				binner.emit(tup, anchor);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		@Override
+		void execute(TridentTuple tup, Tuple anchor) {
+			throw new RuntimeException("Shuffles only pass bins through: " + cur);
+		}
+
+		@Override
+		public boolean execute(Tuple input) {
+			// Pass through to children.
+			for (PipelineExecutor child : children) {
+				child.execute(input);
 			}
+			return false;
 		}
-	}
 
-	@Override
-	public void reportError(Throwable t) {
-		t.printStackTrace();
-		// Let the flexy bolt clean this mess up.
-		throw new RuntimeException(t);
+		@Override
+		public void emit(List<Object> values) {
+			throw new RuntimeException("Shuffles don't take emits: " + cur);
+		}
 	}
 
 	public static PipelineExecutor build(FStream cur, DefaultDirectedGraph<FStream, IndexedEdge<FStream>> subG) {
@@ -434,7 +665,22 @@ public class PipelineExecutor implements TridentCollector {
 			children.add(build(edge.target, subG));
 		}
 
-		// TODO -- break the executors out by type vs a switch statement...
-		return new PipelineExecutor(cur, children);
+		switch (cur.getType()) {
+		case FUNCTION:
+			return new FunctionExecutor(cur, children);
+		case PROJECTION:
+			return new ProjectionExecutor(cur, children);
+		case GROUPBY:
+			if (cur.getIsStage0Agg()) {
+				return new Stage0GroupByExecutor(cur, children);
+			}
+			return new Stage1GroupByExecutor(cur, children);
+		case SPOUT:
+			return new SpoutExecutor(cur, children);
+		case SHUFFLE:
+			return new ShuffleExecutor(cur, children);
+		default:
+			throw new RuntimeException("Unknown node type:" + cur.getType());
+		}
 	}
 }
@@ -0,0 +1,386 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.flexy.executors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import storm.trident.operation.CombinerAggregator;
+
+/**
+ * A combiner store keyed on the serialized bytes of the group key.
+ *
+ * Keys live in a single byte slab and all the per-entry bookkeeping
+ * (hash, slab offset, LRU links, write time) lives in primitive arrays
+ * indexed by entry number, so the only per-key objects are the
+ * aggregates themselves.  The index is an open-addressing table with
+ * linear probing and backward-shift deletion.
+ *
+ * Two keys are considered equal when their serialized forms are equal.
+ * That is at least as strict as Writable.equals, so the worst case is
+ * two partial aggregates for one key, which Stage1 combines anyway.
+ */
+public class SlabCombinerStore<T> implements CombinerStore<T> {
+	private static final int NIL = -1;
+
+	private CombinerAggregator<T> agg;
+	private EvictionListener<T> listener;
+	private int max_size;
+	private long expiry_ms;
+
+	// bucket -> entry + 1, 0 is empty.
+	private int[] buckets;
+	private int mask;
+
+	// Per-entry columns.
+	private int[] hashes;
+	private int[] keyOff;
+	private int[] keyLen;
+	private byte[] keyClass;
+	private int[] prev;
+	private int[] next;
+	private long[] writeTs;
+	private Object[] vals;
+
+	// Free entries are threaded through next[].
+	private int freeHead;
+	private int size = 0;
+	// Most and least recently written entries.
+	private int head = NIL;
+	private int tail = NIL;
+
+	// Key storage, the spare is reused for compaction.
+	private byte[] slab;
+	private byte[] spare;
+	private int slabPos = 0;
+	private int slabLive = 0;
+
+	private List<Class<? extends Writable>> classes = new ArrayList<Class<? extends Writable>>();
+	private DataOutputBuffer keyOut = new DataOutputBuffer();
+	private DataInputBuffer keyIn = new DataInputBuffer();
+
+	// Memo of the last lookup so put() after get() skips the hash and probe.
+	// Matched on the key bytes, writables are often reused with new contents.
+	private int lastEntry = NIL;
+
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+	long compactions = 0;
+
+	public SlabCombinerStore(CombinerAggregator<T> agg, int max_size, int expiry_ms,
+			int slab_bytes, EvictionListener<T> listener) {
+		this.agg = agg;
+		this.listener = listener;
+		this.max_size = Math.max(1, max_size);
+		this.expiry_ms = expiry_ms;
+
+		int cap = Integer.highestOneBit(Math.max(2, this.max_size * 2) - 1) << 1;
+		buckets = new int[cap];
+		mask = cap - 1;
+
+		hashes = new int[this.max_size];
+		keyOff = new int[this.max_size];
+		keyLen = new int[this.max_size];
+		keyClass = new byte[this.max_size];
+		prev = new int[this.max_size];
+		next = new int[this.max_size];
+		writeTs = new long[this.max_size];
+		vals = new Object[this.max_size];
+
+		for (int i = 0; i < this.max_size; i++) {
+			next[i] = i + 1 < this.max_size ? i + 1 : NIL;
+		}
+		freeHead = 0;
+
+		slab = new byte[Math.max(1024, slab_bytes)];
+	}
+
+	static int hashBytes(byte[] b, int off, int len) {
+		// Murmur3 style mixing, one byte at a time.
+		int h = 0x9747b28c;
+		for (int i = off; i < off + len; i++) {
+			h ^= b[i];
+			h *= 0x5bd1e995;
+			h ^= h >>> 15;
+		}
+		h ^= len;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int classId(Class<? extends Writable> klazz) {
+		int id = classes.indexOf(klazz);
+		if (id < 0) {
+			if (classes.size() >= Byte.MAX_VALUE) {
+				throw new RuntimeException("Too many key classes: " + classes);
+			}
+			id = classes.size();
+			classes.add(klazz);
+		}
+		return id;
+	}
+
+	private boolean keyEquals(int e, byte[] b, int len) {
+		if (keyLen[e] != len) {
+			return false;
+		}
+		int off = keyOff[e];
+		for (int i = 0; i < len; i++) {
+			if (slab[off + i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int lookup(Writable key) {
+		keyOut.reset();
+		try {
+			key.write(keyOut);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] b = keyOut.getData();
+		int len = keyOut.getLength();
+		byte cid = (byte) classId(key.getClass());
+		if (lastEntry != NIL && keyClass[lastEntry] == cid && keyEquals(lastEntry, b, len)) {
+			hits++;
+			return lastEntry;
+		}
+		int h = hashBytes(b, 0, len);
+
+		int pos = h & mask;
+		while (buckets[pos] != 0) {
+			int e = buckets[pos] - 1;
+			if (hashes[e] == h && keyClass[e] == cid && keyEquals(e, b, len)) {
+				hits++;
+				lastEntry = e;
+				return e;
+			}
+			pos = (pos + 1) & mask;
+		}
+
+		// Not present, make room first.  Evictions shift buckets so re-probe after.
+		misses++;
+		expire(System.currentTimeMillis());
+		if (size >= max_size) {
+			evict(tail);
+		}
+		pos = h & mask;
+		while (buckets[pos] != 0) {
+			pos = (pos + 1) & mask;
+		}
+
+		int e = freeHead;
+		freeHead = next[e];
+		size++;
+
+		int off = allocate(len);
+		System.arraycopy(b, 0, slab, off, len);
+		keyOff[e] = off;
+		keyLen[e] = len;
+		hashes[e] = h;
+		keyClass[e] = cid;
+		vals[e] = agg.zero();
+		writeTs[e] = System.currentTimeMillis();
+		linkHead(e);
+		buckets[pos] = e + 1;
+
+		lastEntry = e;
+		return e;
+	}
+
+	private int allocate(int len) {
+		if (slabPos + len > slab.length) {
+			compact(len);
+		}
+		int off = slabPos;
+		slabPos += len;
+		slabLive += len;
+		return off;
+	}
+
+	private void compact(int need) {
+		// Copy the live keys into the spare slab, growing if they won't fit.
+		int want = slabLive + need;
+		if (want * 2 > slab.length) {
+			want = Math.max(slab.length * 2, want * 2);
+		} else {
+			want = slab.length;
+		}
+		if (spare == null || spare.length != want) {
+			spare = new byte[want];
+		}
+
+		int pos = 0;
+		for (int e = head; e != NIL; e = next[e]) {
+			System.arraycopy(slab, keyOff[e], spare, pos, keyLen[e]);
+			keyOff[e] = pos;
+			pos += keyLen[e];
+		}
+
+		byte[] tmp = slab;
+		slab = spare;
+		// Only keep the old slab around if it is the same size.
+		spare = tmp.length == slab.length ? tmp : null;
+		slabPos = pos;
+		compactions++;
+	}
+
+	private void linkHead(int e) {
+		prev[e] = NIL;
+		next[e] = head;
+		if (head != NIL) {
+			prev[head] = e;
+		}
+		head = e;
+		if (tail == NIL) {
+			tail = e;
+		}
+	}
+
+	private void unlink(int e) {
+		if (prev[e] != NIL) {
+			next[prev[e]] = next[e];
+		} else {
+			head = next[e];
+		}
+		if (next[e] != NIL) {
+			prev[next[e]] = prev[e];
+		} else {
+			tail = prev[e];
+		}
+	}
+
+	private void removeBucket(int e) {
+		int pos = hashes[e] & mask;
+		while (buckets[pos] != e + 1) {
+			pos = (pos + 1) & mask;
+		}
+
+		// Backward-shift deletion.
+		buckets[pos] = 0;
+		int j = pos;
+		while (true) {
+			j = (j + 1) & mask;
+			if (buckets[j] == 0) {
+				break;
+			}
+			int ideal = hashes[buckets[j] - 1] & mask;
+			boolean stays = (j > pos) ? (ideal > pos && ideal <= j) : (ideal > pos || ideal <= j);
+			if (!stays) {
+				buckets[pos] = buckets[j];
+				buckets[j] = 0;
+				pos = j;
+			}
+		}
+	}
+
+	private Writable readKey(int e) {
+		Writable k = ReflectionUtils.newInstance(classes.get(keyClass[e]), null);
+		keyIn.reset(slab, keyOff[e], keyLen[e]);
+		try {
+			k.readFields(keyIn);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return k;
+	}
+
+	private void evict(int e) {
+		// Materialize the key before the slab space is released.
+		Writable k = readKey(e);
+		T v = (T) vals[e];
+
+		unlink(e);
+		removeBucket(e);
+		vals[e] = null;
+		slabLive -= keyLen[e];
+		next[e] = freeHead;
+		freeHead = e;
+		size--;
+		evictions++;
+		if (lastEntry == e) {
+			lastEntry = NIL;
+		}
+
+		listener.onEvict(k, v);
+	}
+
+	private void expire(long now) {
+		while (tail != NIL && writeTs[tail] + expiry_ms <= now) {
+			evict(tail);
+		}
+	}
+
+	@Override
+	public T get(Writable key) {
+		return (T) vals[lookup(key)];
+	}
+
+	@Override
+	public void put(Writable key, T value) {
+		int e = lookup(key);
+		vals[e] = value;
+		writeTs[e] = System.currentTimeMillis();
+		if (head != e) {
+			unlink(e);
+			linkHead(e);
+		}
+	}
+
+	@Override
+	public void cleanUp() {
+		expire(System.currentTimeMillis());
+	}
+
+	@Override
+	public void invalidateAll() {
+		// Oldest first.
+		while (tail != NIL) {
+			evict(tail);
+		}
+		slabPos = 0;
+		slabLive = 0;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public String stats() {
+		return "SlabCombinerStore{hits=" + hits + ", misses=" + misses +
+				", evictions=" + evictions + ", size=" + size +
+				", slabBytes=" + slab.length + ", slabLive=" + slabLive +
+				", compactions=" + compactions + "}";
+	}
+}
@@ -19,19 +19,11 @@
 package org.apache.pig.piggybank.squeal.flexy.executors;
 
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Writable;
-
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.MutableCombinerAggregator;
 
 import backtype.storm.task.TopologyContext;
 import backtype.storm.tuple.Values;
@@ -39,17 +31,23 @@ import storm.trident.operation.CombinerAggregator;
 import storm.trident.operation.TridentCollector;
 import storm.trident.tuple.TridentTuple;
 
-public class Stage0Executor<T> implements RemovalListener<Writable, T> {
+public class Stage0Executor<T> implements CombinerStore.EvictionListener<T> {
 	public static final String CACHE_SIZE_CONF = "flexy.stage0.cache.size";
 	public static final String CACHE_EXPIRY_CONF = "flexy.stage0.cache.expiry_ms";
 	public static final String FLUSH_INTERVAL_CONF = "flexy.stage0.flush.interval";
 	public static final String CACHE_STATS_INTERVAL_CONF = "flexy.stage0.cache.stats.interval_min";
+	// Either "guava" (default) or "slab".
+	public static final String STORE_CONF = "flexy.stage0.store";
+	public static final String SLAB_BYTES_CONF = "flexy.stage0.slab.bytes";
 
-	private LoadingCache<Writable, T> cache;
+	private CombinerStore<T> cache;
 	private CombinerAggregator<T> agg;
+	// Set when agg can update the cached value in place.
+	private MutableCombinerAggregator<T> mutableAgg;
 	private TridentCollector collector;
 	private int max_size = 1000;
 	private int expiry_ms = 1000;
+	private int slab_bytes = 1024*1024;
 	private static final Log log = LogFactory.getLog(Stage0Executor.class);
 	Throwable lastThrown = null;
 	Writable activeKey = null;
@@ -61,6 +59,9 @@ public class Stage0Executor<T> implements RemovalListener<Writable, T> {
 	
 	public Stage0Executor(CombinerAggregator<T> agg) {
 		this.agg = agg;
+		if (agg instanceof MutableCombinerAggregator) {
+			this.mutableAgg = (MutableCombinerAggregator<T>) agg;
+		}
 	}
 
 	public void setMaximumSize(int max_size) {
@@ -83,27 +84,15 @@ public class Stage0Executor<T> implements RemovalListener<Writable, T> {
 		if (conf_int != null) flush_interval_ms = conf_int.intValue(); 
 		conf_int = (Number) stormConf.get(CACHE_STATS_INTERVAL_CONF);
 		if (conf_int != null) cache_stats_interval_min = conf_int.intValue(); 
+		conf_int = (Number) stormConf.get(SLAB_BYTES_CONF);
+		if (conf_int != null) slab_bytes = conf_int.intValue(); 
 		
-		CacheBuilder<Writable, T> cb = CacheBuilder.newBuilder()
-				.maximumSize(max_size)
-				.expireAfterWrite(expiry_ms, TimeUnit.MILLISECONDS)
-				.removalListener(this);
-		
-		if (cache_stats_interval_min > 0) {
-			try {
-				cb = cb.recordStats();	
-			} catch (NoSuchMethodError e) {
-				// FIXME: Guava/assembly confusion...
-			}
+		Object store = stormConf.get(STORE_CONF);
+		if (store != null && store.toString().equalsIgnoreCase("slab")) {
+			cache = new SlabCombinerStore<T>(agg, max_size, expiry_ms, slab_bytes, this);
+		} else {
+			cache = new GuavaCombinerStore<T>(agg, max_size, expiry_ms, cache_stats_interval_min > 0, this);
 		}
-				
-		cache = cb
-				.build(new CacheLoader<Writable, T>() {
-					@Override
-					public T load(Writable key) throws Exception {
-						return agg.zero();
-					}
-				});
 		
 		this.collector = collector;
 	}
@@ -115,7 +104,9 @@ public class Stage0Executor<T> implements RemovalListener<Writable, T> {
 			activeKey = key;
 			
 			// Merge the new value.
-			T next = agg.combine(cur, agg.init(tuple));
+			// The cached value is ours alone, so fold into it when we can.
+			T next = mutableAgg != null ? 
+					mutableAgg.combineInto(cur, agg.init(tuple)) : agg.combine(cur, agg.init(tuple));
 			// Replace the cached value.
 //			System.err.println("  s0exec: " + key + " cur -- " + cur + " next -- " + next);
 			cache.put(key, next);
@@ -166,19 +157,16 @@ public class Stage0Executor<T> implements RemovalListener<Writable, T> {
 	}
 
 	@Override
-	public void onRemoval(RemovalNotification<Writable, T> note) {
-//		System.err.println("S0 Cache: " + activeKey + " " + note.getKey() + " " + note.getCause() + " " + cache.size());
-		if (!(note.wasEvicted() || note.getCause() == RemovalCause.EXPLICIT)) {
-			return;
-		}
-		if (activeKey != null && activeKey.equals(note.getKey())) {
+	public void onEvict(Writable key, T value) {
+//		System.err.println("S0 Cache: " + activeKey + " " + key + " " + cache.size());
+		if (activeKey != null && activeKey.equals(key)) {
 			return;
 		}
 
 		try {
-//			System.err.println("  s0emit: " + note.getCause() + " " + note.getKey() + " " + note.getValue());
+//			System.err.println("  s0emit: " + key + " " + value);
 			// Emit the record.
-			collector.emit(new Values(note.getKey(), note.getValue()));
+			collector.emit(new Values(key, value));
 		} catch (Throwable e) {
 			lastThrown = e;
 		}
@@ -18,17 +18,26 @@
 
 package org.apache.pig.piggybank.squeal.flexy.executors;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Writable;
+import org.apache.pig.piggybank.squeal.backend.storm.oper.MutableCombinerAggregator;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -50,11 +59,17 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 	public static final String CACHE_EXPIRY_CONF = "flexy.stage1.cache.expiry_ms";
 	public static final String FLUSH_INTERVAL_CONF = "flexy.stage1.flush.interval";
 	public static final String CACHE_STATS_INTERVAL_CONF = "flexy.stage1.cache.stats.interval_min";
+	public static final String PREFETCH_ASYNC_CONF = "flexy.stage1.prefetch.async";
+	public static final String PREFETCH_BATCH_SIZE_CONF = "flexy.stage1.prefetch.batch.size";
+	public static final String PREFETCH_MAX_INFLIGHT_CONF = "flexy.stage1.prefetch.max.inflight";
+	public static final String ASYNC_COMMIT_CONF = "flexy.async.commit";
 	
 	private static final Log log = LogFactory.getLog(Stage1Executor.class);
 	
 	private LoadingCache<Writable, T> cache;
 	private CombinerAggregator<T> agg;
+	// Set when agg can update the cached value in place.
+	private MutableCombinerAggregator<T> mutableAgg;
 	private TridentCollector collector;
 	private int max_size = 1000;
 	private int expiry_ms = 1000;
@@ -71,6 +86,35 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 	// Expired values to be written.
 	Map<Writable, T> writeAhead;
 	
+	// Asynchronous prefetch/commit: all state access is serialized through a single thread.
+	boolean asyncPrefetch = false;
+	boolean asyncCommit = false;
+	int prefetch_batch_size = 100;
+	int max_inflight = 4;
+	private ExecutorService stateThread;
+	// The outstanding asynchronous write and the values it is writing.
+	Future<?> committing;
+	Map<Writable, T> committingValues;
+	// Outstanding prefetches in submission order.
+	ArrayDeque<Prefetch> inflight = new ArrayDeque<Prefetch>();
+	// Keys with an outstanding prefetch.
+	Map<Writable, Prefetch> pending = new HashMap<Writable, Prefetch>();
+	
+	class Prefetch {
+		List<List<Object>> keys;
+		Future<List<T>> result;
+		
+		Prefetch(final List<List<Object>> keys) {
+			this.keys = keys;
+			result = stateThread.submit(new Callable<List<T>>() {
+				@Override
+				public List<T> call() throws Exception {
+					return state.multiGet(keys);
+				}
+			});
+		}
+	}
+	
 	private MapState<T> state;
 	private CombinerAggregator<T> storeAgg;
 	private Throwable lastThrown = null;
@@ -80,6 +124,9 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 	
 	public Stage1Executor(CombinerAggregator<T> agg, CombinerAggregator<T> storeAgg, StateFactory sf) {
 		this.agg = agg;
+		if (agg instanceof MutableCombinerAggregator) {
+			this.mutableAgg = (MutableCombinerAggregator<T>) agg;
+		}
 		this.storeAgg = storeAgg;
 		this.sf = sf;
 	}
@@ -114,6 +161,29 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 		if (conf_int != null) flush_interval_ms = conf_int.intValue(); 
 		conf_int = (Number) stormConf.get(CACHE_STATS_INTERVAL_CONF);
 		if (conf_int != null) cache_stats_interval_min = conf_int.intValue(); 
+		conf_int = (Number) stormConf.get(PREFETCH_BATCH_SIZE_CONF);
+		if (conf_int != null) prefetch_batch_size = conf_int.intValue(); 
+		conf_int = (Number) stormConf.get(PREFETCH_MAX_INFLIGHT_CONF);
+		if (conf_int != null) max_inflight = conf_int.intValue(); 
+		if (stormConf.containsKey(PREFETCH_ASYNC_CONF)) {
+			String v = stormConf.get(PREFETCH_ASYNC_CONF).toString().substring(0, 1);
+			asyncPrefetch = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		if (stormConf.containsKey(ASYNC_COMMIT_CONF)) {
+			String v = stormConf.get(ASYNC_COMMIT_CONF).toString().substring(0, 1);
+			asyncCommit = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		
+		if (asyncPrefetch || asyncCommit) {
+			stateThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "stage1-state");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 		
 		// Create the cache to hold the current computations before state manipulation.
 		CacheBuilder<Writable, T> cb = CacheBuilder.newBuilder()
@@ -135,11 +205,17 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 						// If this value is in the writeAhead, save it
 						if (writeAhead.containsKey(key)) {
 							stateBacklog.put(key, writeAhead.remove(key));
+						} else if (committingValues != null && committingValues.containsKey(key)) {
+							// Being written right now, the snapshot is the current state.
+							stateBacklog.put(key, committingValues.get(key));
 						}
 						// Determine if we've fetched the current state.
-						if (!stateBacklog.containsKey(key)) {
+						if (!stateBacklog.containsKey(key) && !pending.containsKey(key)) {
 							// Add to prefetch to pull the current data from store.
 							prefetch.add(new ArrayList<Object>() {{ add(key); }} );
+							if (asyncPrefetch && prefetch.size() >= prefetch_batch_size) {
+								submitPrefetch();
+							}
 						}
 						return agg.zero();
 					}
@@ -150,12 +226,19 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 	
 	public void execute(final Writable key, TridentTuple tuple) {
 		try {
+			if (asyncPrefetch) {
+				// Pick up anything that has already arrived.
+				drainCompleted();
+			}
+			
 			// Pull the current value.
 			T cur = cache.get(key);
 			activeKey = key;
 			
 			// Merge the new value.
-			T next = agg.combine(cur, agg.init(tuple));
+			// The cached value is ours alone, so fold into it when we can.
+			T next = mutableAgg != null ? 
+					mutableAgg.combineInto(cur, agg.init(tuple)) : agg.combine(cur, agg.init(tuple));
 			
 			// Replace the cached value.
 			cache.put(key, next);
@@ -196,16 +279,24 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 			last_flush = now;
 		} else if (flush_interval_ms == -1) {
 			// Never flush, but do allow for expiration.
+			submitPrefetch();
 			cache.cleanUp();
 			checkError();
 			return;
 		}
 		
+		// Get the remaining fetches going before the evictions need them.
+		submitPrefetch();
 		cache.invalidateAll();
 		checkError();
 	}
 	
-	public void commit(long txid) {
+	public void commit(final long txid) {
+		// The state is not thread safe, nothing may be in flight during the write.
+		drainInflight();
+		// Only one write at a time, and the previous one must have succeeded.
+		finishCommit();
+		
 		// Build lists of updates.
 		List<List<Object>> keys = new ArrayList<List<Object>>(writeAhead.size());
 		List<T> vals = new ArrayList<T>(writeAhead.size());
@@ -216,6 +307,22 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 			vals.add(ent.getValue());
 		}
 		
+		if (asyncCommit) {
+			// Hand the snapshot to the state thread and start filling a fresh writeahead.
+			final List<List<Object>> fkeys = keys;
+			final List<T> fvals = vals;
+			committingValues = writeAhead;
+			writeAhead = new HashMap<Writable, T>();
+			committing = stateThread.submit(new Runnable() {
+				@Override
+				public void run() {
+					state.multiPut(fkeys, fvals);
+					state.commit(txid);
+				}
+			});
+			return;
+		}
+		
 		// Push them out to the state.
 		state.multiPut(keys, vals);
 		state.commit(txid);
@@ -224,7 +331,61 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 		writeAhead.clear();
 	}
 	
+	void finishCommit() {
+		if (committing == null) {
+			return;
+		}
+		
+		try {
+			committing.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			// Put back anything that hasn't been superseded so the retry writes it.
+			for (Entry<Writable, T> ent : committingValues.entrySet()) {
+				if (!writeAhead.containsKey(ent.getKey()) && !stateBacklog.containsKey(ent.getKey())) {
+					writeAhead.put(ent.getKey(), ent.getValue());
+				}
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			committing = null;
+			committingValues = null;
+		}
+	}
+	
+	/**
+	 * Stop the state thread and close the state, if it can be closed.
+	 */
+	public void cleanup() {
+		if (stateThread != null) {
+			// Let an outstanding write finish first.
+			stateThread.shutdown();
+			try {
+				stateThread.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (sf instanceof Closeable) {
+			try {
+				((Closeable) sf).close();
+			} catch (IOException e) {
+				log.warn("Unable to close the state: " + sf, e);
+			}
+		}
+	}
+	
 	public void runPrefetch() {
+		if (asyncPrefetch) {
+			submitPrefetch();
+			drainInflight();
+			return;
+		}
+		
+		// The state may not be read while a write is running.
+		finishCommit();
 		List<T> fetched = state.multiGet(prefetch);
 		for (int i = 0; i < prefetch.size(); i++) {
 			T cur = fetched.get(i);
@@ -234,6 +395,90 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 		}
 		prefetch.clear();
 	}
+	
+	void submitPrefetch() {
+		if (!asyncPrefetch || prefetch.size() == 0) {
+			return;
+		}
+		
+		Prefetch p = new Prefetch(prefetch);
+		prefetch = new ArrayList<List<Object>>();
+		for (List<Object> k : p.keys) {
+			pending.put((Writable) k.get(0), p);
+		}
+		inflight.addLast(p);
+		
+		// Bound the window.
+		while (inflight.size() > max_inflight) {
+			complete(inflight.pollFirst());
+		}
+	}
+	
+	void complete(Prefetch p) {
+		List<T> fetched;
+		try {
+			fetched = p.result.get();
+		} catch (InterruptedException e) {
+			requeue(p);
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			requeue(p);
+			throw new RuntimeException(e.getCause());
+		}
+		
+		for (int i = 0; i < p.keys.size(); i++) {
+			Writable k = (Writable) p.keys.get(i).get(0);
+			pending.remove(k);
+			T cur = fetched.get(i);
+			if (cur == null) cur = storeAgg.zero();
+			stateBacklog.put(k, cur);
+		}
+	}
+	
+	/*
+	 * A failed prefetch: queue its keys again, as the synchronous path
+	 * leaves them in prefetch, so the next attempt still reads them.
+	 */
+	void requeue(Prefetch p) {
+		for (List<Object> k : p.keys) {
+			pending.remove(k.get(0));
+			prefetch.add(k);
+		}
+	}
+	
+	void drainCompleted() {
+		while (inflight.size() > 0 && inflight.peekFirst().result.isDone()) {
+			complete(inflight.pollFirst());
+		}
+	}
+	
+	void drainInflight() {
+		while (inflight.size() > 0) {
+			complete(inflight.pollFirst());
+		}
+	}
+	
+	void awaitState(Writable key) {
+		if (!asyncPrefetch) {
+			runPrefetch();
+			return;
+		}
+		
+		// Make sure this key has been sent.
+		if (!pending.containsKey(key)) {
+			submitPrefetch();
+		}
+		
+		// Block only as far as the batch holding this key.
+		Prefetch p = pending.get(key);
+		while (p != null && inflight.size() > 0) {
+			Prefetch head = inflight.pollFirst();
+			complete(head);
+			if (head == p) {
+				break;
+			}
+		}
+	}
 
 	@Override
 	public void onRemoval(RemovalNotification<Writable, T> note) {
@@ -251,7 +496,7 @@ public class Stage1Executor<T> implements RemovalListener<Writable, T> {
 			T cur;
 			if (!stateBacklog.containsKey(note.getKey())) {
 				// Pull the values in from the prefetch.
-				runPrefetch();
+				awaitState(note.getKey());
 			}
 			cur = stateBacklog.remove(note.getKey());
 //			System.err.println("stateBacklogged: k=<" + note.getKey() + "> v=" + cur);
@@ -48,6 +48,8 @@ public class FStream implements Serializable {
 	private CombinerAggregator storeAgg;
 	private StateFactory sf;
 	private Fields func_project;
+	// Set when a following projection has been folded into this function.
+	private Fields project_output;
 	
 	public enum NodeType {
 		SPOUT, FUNCTION, PROJECTION, SHUFFLE, GROUPBY, MERGE
@@ -158,6 +160,9 @@ public class FStream implements Serializable {
 	public Fields getOutputFields() {
 		switch (nodeType) {
 		case FUNCTION:
+			if (project_output != null) {
+				return project_output;
+			}
 			return TridentUtils.fieldsConcat(input_fields, output_fields);
 		case GROUPBY:
 			return TridentUtils.fieldsConcat(group_key, getAppendOutputFields());
@@ -249,6 +254,7 @@ public class FStream implements Serializable {
 		switch (nodeType) {
 		case FUNCTION:
 			n.setFunctionInformation(input_fields, func_project, func, output_fields);
+			n.project_output = project_output;
 			break;
 		case GROUPBY:
 			n.setGroupBySpec(group_key, input_fields, stage0Agg, stage1Agg, storeAgg, sf, output_fields);
@@ -274,6 +280,38 @@ public class FStream implements Serializable {
 		return n;
 	}
 
+	/**
+	 * A copy of this function or projection with the projection that
+	 * follows it folded in, so the output goes straight to the projected
+	 * fields.
+	 */
+	public FStream fuse(FStream projection) {
+		if ((nodeType != NodeType.FUNCTION && nodeType != NodeType.PROJECTION) 
+				|| projection.getType() != NodeType.PROJECTION) {
+			throw new RuntimeException("Can only fuse a function or projection and a projection: " + this + " " + projection);
+		}
+		
+		FStream n = copy();
+		if (nodeType == NodeType.PROJECTION) {
+			// The later projection picks from what this one kept.
+			n.setProjection(input_fields, projection.getOutputFields());
+		} else {
+			n.project_output = projection.getOutputFields();
+		}
+		
+		// Keep the bolt names and parallelism as they were.
+		if (projection.getName() != null) {
+			n.name(name == null ? projection.getName() : name + "-" + projection.getName());
+		}
+		n.parallelismHint(Math.max(parallelismHint, projection.getParallelism()));
+		
+		return n;
+	}
+	
+	public Fields getProjectedOutputFields() {
+		return project_output;
+	}
+
 	public void setStage0Agg(boolean b) {
 		isStage0Agg  = b;
 	}
@@ -22,6 +22,7 @@ import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
@@ -55,7 +56,10 @@ public class FlexyBolt extends BaseRichBolt {
 	Map<FStream, String> idMap = new HashMap<FStream, String>();
 	private OutputCollector collector;
 	private int expectedCoord = 0;
-	private int seenCoord = 0;
+	// Coord messages seen per batch, commits tracked apart from propagation
+	// because a commit may overlap the next batch.
+	TreeMap<Long, Integer> seenCoord = new TreeMap<Long, Integer>();
+	TreeMap<Long, Integer> seenCommitCoord = new TreeMap<Long, Integer>();
 	private Fields input_fields;
 	public static final String CRASH_ON_FAILURE_CONF = "flexy.bolt.crash.on.failure";
 	boolean crashOnError = false;
@@ -116,12 +120,15 @@ public class FlexyBolt extends BaseRichBolt {
 
 				send_coord = true;
 			} else if (input.getSourceStreamId().equals("coord")) {
-				// Ensure the proper amount of messages came through.
-				seenCoord += 1;
-
 				// Pull the coord type from the message.
 				coord_type = input.getInteger(1);
 
+				// Ensure the proper amount of messages came through.
+				long batchid = input.getLong(0);
+				TreeMap<Long, Integer> seen = coord_type > 1 ? seenCommitCoord : seenCoord;
+				Integer seen_count = seen.get(batchid);
+				seen_count = (seen_count == null) ? 1 : seen_count + 1;
+
 				// Pull the tracer.
 				FlexyTracer ft = (FlexyTracer) input.getValue(2);
 				int src = input.getSourceTask();
@@ -142,8 +149,10 @@ public class FlexyBolt extends BaseRichBolt {
 //				log.info(getName() + " source: " + src + " avg_delay: " + (1.*total_time/obs_count));
 				
 				// If we have received coordination messages from all our preceding nodes, start releasing.
-				if (seenCoord == expectedCoord) {
-//					log.info(getName() + " seenCoord " + seenCoord + " of " + expectedCoord + " " + coord_type);
+				if (seen_count == expectedCoord) {
+					// Drop this batch and anything older left behind by a failure.
+					seen.headMap(batchid, true).clear();
+//					log.info(getName() + " seenCoord " + seen_count + " of " + expectedCoord + " " + coord_type);
 					// Release the remaining tuples.
 					pipeline.flush(input);
 					if (coord_type > 1) {
@@ -152,7 +161,8 @@ public class FlexyBolt extends BaseRichBolt {
 
 					// Send coord messages.
 					send_coord = true;
-					seenCoord = 0;
+				} else {
+					seen.put(batchid, seen_count);
 				}
 			} else {
 				// Execute the assembly.
@@ -181,6 +191,11 @@ public class FlexyBolt extends BaseRichBolt {
 		}
 	}
 
+	@Override
+	public void cleanup() {
+		pipeline.cleanup();
+	}
+
 	@Override
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
 		// Add the coordination stream.
@@ -18,11 +18,15 @@
 
 package org.apache.pig.piggybank.squeal.flexy.topo;
 
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.pig.piggybank.squeal.flexy.executors.PipelineExecutor;
+import org.apache.pig.piggybank.squeal.flexy.executors.Stage1Executor;
 
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
@@ -32,6 +36,14 @@ import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
 
 public class FlexyMasterSpout extends BaseRichSpout {
+	/**
+	 * Number of batches allowed to propagate at once.  Only applies to
+	 * scripts without a GROUP BY: any GROUPBY node holds Stage1 state that
+	 * can't be split per batch, and such topologies always run at depth 1.
+	 */
+	public static final String PIPELINE_DEPTH_CONF = "flexy.pipeline.depth";
+	public static final String BATCH_TARGET_MS_CONF = "flexy.batch.target_ms";
+	public static final String BATCH_MIN_SIZE_CONF = "flexy.batch.min.size";
 	private static final Log log = LogFactory.getLog(FlexyMasterSpout.class);
 
 	private SpoutOutputCollector collector;
@@ -39,13 +51,93 @@ public class FlexyMasterSpout extends BaseRichSpout {
 	Long cur_batch = 0L;
 	boolean last_failed = false;
 	long start_ts = 0;
-	Random r;
+	
+	// Allow the next batch to start while the previous commit is written.
+	boolean asyncCommit = false;
+	// Number of batches allowed to propagate at once, forced to 1 when stateful.
+	int depth = 1;
+	// Set when the topology holds Stage1 state.  A commit writes whatever the
+	// caches and writeahead hold, and those can't tell one batch from the next,
+	// so a batch may only start once every earlier one is committed.
+	boolean stateful;
+	// Last batch (by start id) whose commit is known to be written, the
+	// spouts ack everything up to it.
+	long last_committed = -1;
+	// With asyncCommit an acked commit has only handed its write off.  The
+	// next commit waits on that write, so its ack confirms this batch.
+	long unconfirmed = -1;
+	long msg_counter = 0;
+	// Outstanding start messages: msgId -> batch.
+	TreeMap<Long, Long> starting = new TreeMap<Long, Long>();
+	// Batches that have propagated but aren't committed yet.
+	TreeSet<Long> propagated = new TreeSet<Long>();
+	// At most one commit is outstanding.
+	Long commitMsgId = null;
+	// Start id of the last batch covered by the commit, -1 for a rollback.
+	long commit_batch = -1;
+	
+	// Adaptive batch sizing: the per-spout tuple budget sent with each start
+	// is steered so start-to-commit latency stays near target_ms.
+	long target_ms = 0;
+	int batch_budget;
+	int min_batch = 10;
+	int max_batch;
+	// Emit time by start msgId, and the slowest propagation since the last commit.
+	Map<Long, Long> startTs = new HashMap<Long, Long>();
+	long prop_ms = 0;
+	long commit_ts = 0;
+
+	public FlexyMasterSpout(boolean stateful) {
+		this.stateful = stateful;
+	}
 
 	@Override
 	public void open(Map conf, TopologyContext context,
 			SpoutOutputCollector collector) {
 		this.collector = collector;
-		r = new Random();
+		
+		if (conf.containsKey(Stage1Executor.ASYNC_COMMIT_CONF)) {
+			String v = conf.get(Stage1Executor.ASYNC_COMMIT_CONF).toString().substring(0, 1);
+			asyncCommit = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		Number conf_int = (Number) conf.get(PIPELINE_DEPTH_CONF);
+		if (conf_int != null) depth = Math.max(1, conf_int.intValue());
+		if (stateful && depth > 1) {
+			log.warn("Ignoring " + PIPELINE_DEPTH_CONF + "=" + depth + ", stateful topologies run one batch at a time.");
+			depth = 1;
+		}
+		
+		conf_int = (Number) conf.get(PipelineExecutor.MAX_BATCH_SIZE_CONF);
+		max_batch = conf_int == null ? PipelineExecutor.DEFAULT_MAX_BATCH_SIZE : conf_int.intValue();
+		conf_int = (Number) conf.get(BATCH_MIN_SIZE_CONF);
+		if (conf_int != null) min_batch = conf_int.intValue();
+		min_batch = Math.max(1, Math.min(min_batch, max_batch));
+		conf_int = (Number) conf.get(BATCH_TARGET_MS_CONF);
+		if (conf_int != null) target_ms = conf_int.longValue();
+		batch_budget = max_batch;
+	}
+	
+	void adjustBudget(long latency) {
+		if (target_ms <= 0) {
+			return;
+		}
+		
+		if (latency > target_ms) {
+			// Back off in proportion to the overshoot, but no more than half at once.
+			batch_budget = (int) Math.max(batch_budget / 2, batch_budget * target_ms / latency);
+		} else if (latency < target_ms * 3 / 4) {
+			// Plenty of headroom, grow by a quarter.
+			batch_budget += Math.max(1, batch_budget / 4);
+		}
+		batch_budget = Math.max(min_batch, Math.min(max_batch, batch_budget));
+	}
+	
+	long oldestStarting() {
+		long oldest = Long.MAX_VALUE;
+		for (Long batch : starting.values()) {
+			oldest = Math.min(oldest, batch);
+		}
+		return oldest;
 	}
 
 	@Override
@@ -53,40 +145,55 @@ public class FlexyMasterSpout extends BaseRichSpout {
 		int enter_state = cur_state;
 		
 		if (cur_state == 0) {
-			// Start a new batch.
-			collector.emit("start", new Values(cur_batch, last_failed), r.nextInt());
-			last_failed = false;
-			long now = System.currentTimeMillis();
-			if (start_ts != 0 && (now-start_ts) > 10000) {
-				System.err.println("Batch: " + cur_batch + " " + (now-start_ts) + " ms" );
+			// Commit everything that has propagated, in batch order.  Batches
+			// behind one still in flight have to wait for it.
+			if (commitMsgId == null && propagated.size() > 0 && propagated.first() < oldestStarting()) {
+				commit_batch = propagated.headSet(oldestStarting()).last();
+				commitMsgId = msg_counter++;
+				commit_ts = System.currentTimeMillis();
+				collector.emit("commit", new Values(commit_batch + 1, true), commitMsgId);
 			}
-//			// TODO: Make this tunable.
-//			if (start_ts != 0 && (now-start_ts) < 50) {
-//				log.info("Throttling spout due to batch execution time less than 50 ms " + cur_batch + " " + (now-start_ts));
-//				try {
-//					Thread.sleep(1000);
-//				} catch (InterruptedException e) {
-//					throw new RuntimeException(e);
-//				}
-//			}
-			start_ts = now;
 			
-			cur_batch ++;
-			cur_state ++;
+			// Start a new batch if the window allows.  Propagated batches waiting
+			// on a commit don't count, they get folded into the next one.
+			// Synchronous commits block the bolts anyway, so hold off until they are done.
+			// With state the commit has to be through the bolts first, an async commit
+			// still overlaps its write with the next batch.
+			if (starting.size() < depth && (commitMsgId == null || (asyncCommit && !stateful))) {
+				long msgId = msg_counter++;
+				long now = System.currentTimeMillis();
+				starting.put(msgId, cur_batch);
+				startTs.put(msgId, now);
+				collector.emit("start", new Values(cur_batch, last_failed, last_committed, batch_budget), msgId);
+				last_failed = false;
+				if (start_ts != 0 && (now-start_ts) > 10000) {
+					System.err.println("Batch: " + cur_batch + " " + (now-start_ts) + " ms" );
+				}
+//				// TODO: Make this tunable.
+//				if (start_ts != 0 && (now-start_ts) < 50) {
+//					log.info("Throttling spout due to batch execution time less than 50 ms " + cur_batch + " " + (now-start_ts));
+//					try {
+//						Thread.sleep(1000);
+//					} catch (InterruptedException e) {
+//						throw new RuntimeException(e);
+//					}
+//				}
+				start_ts = now;
+				
+				cur_batch ++;
+			}
 		} else if (cur_state == 1) {
-			// Waiting for propagation of batch..
-		} else if (cur_state == 2) {
-			// Batch completed, begin commit.
-			collector.emit("commit", new Values(cur_batch, true), r.nextInt());
-			cur_state ++;
-		} else if (cur_state == 3) {
-			// Waiting for commit complete.
-		} else if (cur_state == 4) {
-			// Commit failed, roll back.
-			collector.emit("commit", new Values(cur_batch, false), r.nextInt());
-			cur_state ++;
+			// Something failed, roll back once everything outstanding has settled.
+			if (starting.size() == 0 && commitMsgId == null) {
+				propagated.clear();
+				prop_ms = 0;
+				commitMsgId = msg_counter++;
+				commit_batch = -1;
+				collector.emit("commit", new Values(cur_batch, false), commitMsgId);
+				cur_state ++;
+			}
 		} else {
-			// Do nothing.
+			// Waiting for the rollback.
 		}
 		
 		if (cur_state != enter_state) {
@@ -96,26 +203,59 @@ public class FlexyMasterSpout extends BaseRichSpout {
 
 	@Override
 	public void declareOutputFields(OutputFieldsDeclarer declarer) {
-		declarer.declareStream("start", new Fields("batchid", "last_failed"));
+		declarer.declareStream("start", new Fields("batchid", "last_failed", "last_committed", "batch_size"));
 		declarer.declareStream("commit", new Fields("batchid", "success"));
 	}
 
 	@Override
     public void ack(Object msgId) {
-//		log.info(cur_batch + " ack: " + cur_state);
-		// Successful complete drops us back to go.
-		if (cur_state >= 3) {
-			cur_state = 0;
-		} else {
-			cur_state ++;
+//		log.info(cur_batch + " ack: " + cur_state + " " + msgId);
+		Long batch = starting.remove(msgId);
+		if (batch != null) {
+			prop_ms = Math.max(prop_ms, System.currentTimeMillis() - startTs.remove(msgId));
+			if (cur_state == 0) {
+				propagated.add(batch);
+			}
+		} else if (msgId.equals(commitMsgId)) {
+			commitMsgId = null;
+			if (asyncCommit) {
+				// Any commit, even a rollback, waits on the previous write first.
+				last_committed = unconfirmed;
+			}
+			if (commit_batch >= 0) {
+				// Latency of the slowest batch this commit covers.
+				adjustBudget(prop_ms + System.currentTimeMillis() - commit_ts);
+				prop_ms = 0;
+				if (asyncCommit) {
+					unconfirmed = commit_batch;
+				} else {
+					last_committed = commit_batch;
+				}
+				propagated.headSet(commit_batch, true).clear();
+			}
+			// Successful rollback drops us back to go.
+			if (cur_state == 2) {
+				cur_state = 0;
+			}
 		}
     }
 
     @Override
     public void fail(Object msgId) {
-    	log.info(cur_batch + " failed: " + cur_state);
+    	log.info(cur_batch + " failed: " + cur_state + " " + msgId);
+    	startTs.remove(msgId);
+    	if (starting.remove(msgId) == null) {
+    		if (msgId.equals(commitMsgId)) {
+    			commitMsgId = null;
+    			// The previous write may be what failed, replay its batches.
+    			unconfirmed = last_committed;
+    		} else {
+    			// Stale message.
+    			return;
+    		}
+    	}
     	// We need to switch to a failed state.
-    	cur_state = 4;
+    	cur_state = 1;
     	last_failed = true;
     }
 }
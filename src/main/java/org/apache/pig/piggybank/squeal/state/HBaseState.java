@@ -23,14 +23,27 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -65,6 +78,11 @@ public class HBaseState<T> implements IBackingMap<T> {
 	 *  - serialize - Used for object marshaling.
 	 *  - columnQualifier - optional qualfier.
 	 *  - sep - Compound key separator.
+	 *  - regionParallel - Split gets and puts by region server and send
+	 *    each server's share from its own thread.
+	 *  - maxInflight - Region server batches in flight at once.
+	 *  - writeBufferSize - Client write buffer in bytes, 0 for the
+	 *    HBase default.
 	 */
 	public static class HBaseOptions<T> implements Serializable {
         public int localCacheSize = 1000;
@@ -75,6 +93,9 @@ public class HBaseState<T> implements IBackingMap<T> {
         public String columnQualifier = "cq";
         public boolean autoFlush = false;
         public boolean skipWAL = false;
+        public boolean regionParallel = false;
+        public int maxInflight = 8;
+        public long writeBufferSize = 0;
     }
 	
 	public static StateFactory fromJSONArgs(HashMap args) {
@@ -128,6 +149,15 @@ public class HBaseState<T> implements IBackingMap<T> {
 		if (args.get("skipWAL") != null) {
 			opts.skipWAL = ((String) args.get("skipWAL")).equalsIgnoreCase("true");
 		}
+		if (args.get("regionParallel") != null) {
+			opts.regionParallel = args.get("regionParallel").toString().equalsIgnoreCase("true");
+		}
+		if (args.get("maxInflight") != null) {
+			opts.maxInflight = Integer.parseInt(args.get("maxInflight").toString());
+		}
+		if (args.get("writeBufferSize") != null) {
+			opts.writeBufferSize = Long.parseLong(args.get("writeBufferSize").toString());
+		}
 		
 		if (storage_type.equalsIgnoreCase("NON_TRANSACTIONAL")) {
 			return nonTransactional(tableName, columnFamily, opts);
@@ -227,6 +257,16 @@ public class HBaseState<T> implements IBackingMap<T> {
 		}
     }
     
+    // Shared by the region parallel states in the worker.
+    private static HConnection connection;
+    
+    private static synchronized HConnection getConnection() throws IOException {
+    	if (connection == null) {
+    		connection = HConnectionManager.createConnection(HBaseConfiguration.create());
+    	}
+    	return connection;
+    }
+    
     private HBaseOptions _opts;
     private Serializer _ser;
 	private byte[] _tableName;
@@ -235,6 +275,10 @@ public class HBaseState<T> implements IBackingMap<T> {
 	private HTable table;
 	private String tableName;
 	private String columnFamily;
+	// Region parallel mode.
+	private HConnection conn;
+	private TableName _table;
+	private ThreadPoolExecutor regionThreads;
     
     public HBaseState(String tableName, String columnFamily, HBaseOptions opts, Serializer<T> ser) {
         _tableName = Bytes.toBytes(tableName);
@@ -245,6 +289,29 @@ public class HBaseState<T> implements IBackingMap<T> {
         _columnQualifier = Bytes.toBytes(opts.columnQualifier);
         _ser = ser;
 
+        if (opts.regionParallel) {
+        	try {
+        		conn = getConnection();
+        	} catch (IOException e) {
+        		throw new RuntimeException(e);
+        	}
+        	_table = TableName.valueOf(_tableName);
+        	
+        	// One thread per region server batch, idle ones go away.
+        	regionThreads = new ThreadPoolExecutor(opts.maxInflight, opts.maxInflight, 
+        			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        			new ThreadFactory() {
+        				@Override
+        				public Thread newThread(Runnable r) {
+        					Thread t = new Thread(r, "hbase-region-" + HBaseState.this.tableName);
+        					t.setDaemon(true);
+        					return t;
+        				}
+        			});
+        	regionThreads.allowCoreThreadTimeOut(true);
+        	return;
+        }
+
         // Make the table object.
         Configuration config = HBaseConfiguration.create();
         try {
@@ -252,6 +319,9 @@ public class HBaseState<T> implements IBackingMap<T> {
 			if (!opts.autoFlush) {
 				table.setAutoFlush(false);
 			}
+			if (opts.writeBufferSize > 0) {
+				table.setWriteBufferSize(opts.writeBufferSize);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -295,7 +365,11 @@ public class HBaseState<T> implements IBackingMap<T> {
     	
     	Result[] results;
     	try {
-			results = table.get(gets);
+    		if (conn != null) {
+    			results = regionGet(gets);
+    		} else {
+    			results = table.get(gets);
+    		}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -304,7 +378,7 @@ public class HBaseState<T> implements IBackingMap<T> {
     	List<T> ret = new ArrayList(keys.size());
     	for (Result r : results) {
     		
-    		byte[] res = r.getValue(_columnFamily, _columnQualifier);
+    		byte[] res = r == null ? null : r.getValue(_columnFamily, _columnQualifier);
 //    		System.out.println("HBaseState.multiGet: res.length " + (res == null ? null : res.length));
     		if (res != null) {
                 T val = (T)_ser.deserialize(res);
@@ -347,6 +421,10 @@ public class HBaseState<T> implements IBackingMap<T> {
     	}
     	
     	try {
+    		if (conn != null) {
+    			regionPut(puts);
+    			return;
+    		}
 			table.put(puts);
 			if (!_opts.autoFlush) {
 				table.flushCommits();
@@ -356,6 +434,109 @@ public class HBaseState<T> implements IBackingMap<T> {
 		}
 	}
 	
+	/*
+	 * Indexes into rows, grouped by the region server holding each row.
+	 */
+	private Map<ServerName, List<Integer>> byServer(List<byte[]> rows) throws IOException {
+		Map<ServerName, List<Integer>> ret = new LinkedHashMap<ServerName, List<Integer>>();
+		for (int i = 0; i < rows.size(); i++) {
+			// Locations are cached by the connection.
+			ServerName sn = conn.getRegionLocation(_table, rows.get(i), false).getServerName();
+			List<Integer> idx = ret.get(sn);
+			if (idx == null) {
+				idx = new ArrayList<Integer>();
+				ret.put(sn, idx);
+			}
+			idx.add(i);
+		}
+		return ret;
+	}
+	
+	/*
+	 * Wait for every region server batch, rethrowing the first failure.
+	 */
+	private void await(List<Future<Void>> pending) throws IOException {
+		for (Future<Void> f : pending) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+	
+	private Result[] regionGet(final List<Get> gets) throws IOException {
+		List<byte[]> rows = new ArrayList<byte[]>(gets.size());
+		for (Get g : gets) {
+			rows.add(g.getRow());
+		}
+		
+		final Result[] ret = new Result[gets.size()];
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (final List<Integer> idx : byServer(rows).values()) {
+			pending.add(regionThreads.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					List<Get> batch = new ArrayList<Get>(idx.size());
+					for (int i : idx) {
+						batch.add(gets.get(i));
+					}
+					HTableInterface t = conn.getTable(_table);
+					try {
+						Result[] res = t.get(batch);
+						for (int i = 0; i < res.length; i++) {
+							ret[idx.get(i)] = res[i];
+						}
+					} finally {
+						t.close();
+					}
+					return null;
+				}
+			}));
+		}
+		await(pending);
+		
+		return ret;
+	}
+	
+	private void regionPut(final List<Put> puts) throws IOException {
+		List<byte[]> rows = new ArrayList<byte[]>(puts.size());
+		for (Put p : puts) {
+			rows.add(p.getRow());
+		}
+		
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (final List<Integer> idx : byServer(rows).values()) {
+			pending.add(regionThreads.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					List<Put> batch = new ArrayList<Put>(idx.size());
+					for (int i : idx) {
+						batch.add(puts.get(i));
+					}
+					HTableInterface t = conn.getTable(_table);
+					try {
+						t.setAutoFlush(false, true);
+						if (_opts.writeBufferSize > 0) {
+							t.setWriteBufferSize(_opts.writeBufferSize);
+						}
+						t.put(batch);
+						t.flushCommits();
+					} finally {
+						t.close();
+					}
+					return null;
+				}
+			}));
+		}
+		await(pending);
+	}
+	
 	public String toString() {
     	return "HBaseState@" + this.hashCode() + " tableName: " + tableName + " columnFamily: " + columnFamily;
     }
@@ -0,0 +1,464 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A small log structured byte[] to byte[] store kept in a local
+ * directory.  Writes go to a log and a sorted in-memory table; full
+ * tables are written out as immutable sorted segments that are read
+ * through memory maps, and segments are merged once there are too
+ * many of them.  There are no deletes.
+ *
+ * Not thread safe.
+ */
+public class LSMStore implements Closeable {
+	private static final Log log = LogFactory.getLog(LSMStore.class);
+
+	private static final String WAL = "wal.log";
+	private static final String SEG_PREFIX = "seg-";
+	private static final String SEG_SUFFIX = ".dat";
+	private static final String TMP_SUFFIX = ".tmp";
+	// "SQLSM001"
+	private static final long MAGIC = 0x53514c534d303031L;
+	// Count and magic.
+	private static final int FOOTER = 12;
+
+	/**
+	 * Unsigned lexicographic order, the order of the segments.
+	 */
+	public static final Comparator<byte[]> BYTES = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			int n = Math.min(a.length, b.length);
+			for (int i = 0; i < n; i++) {
+				int c = (a[i] & 0xff) - (b[i] & 0xff);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+
+	/*
+	 * A sorted run on disk: records of [int klen][key][int vlen][value],
+	 * the int offset of every record, the record count and MAGIC.
+	 */
+	static class Segment {
+		final File file;
+		final long id;
+		final MappedByteBuffer buf;
+		final int count;
+		final int indexOff;
+
+		Segment(File file, long id) throws IOException {
+			this.file = file;
+			this.id = id;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel ch = raf.getChannel();
+				if (ch.size() > Integer.MAX_VALUE || ch.size() < FOOTER) {
+					throw new IOException("Bad segment size " + ch.size() + ": " + file);
+				}
+				// The mapping outlives the channel.
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			} finally {
+				raf.close();
+			}
+
+			int footer = buf.limit() - FOOTER;
+			if (buf.getLong(footer + 4) != MAGIC) {
+				throw new IOException("Bad segment: " + file);
+			}
+			count = buf.getInt(footer);
+			indexOff = footer - 4 * count;
+		}
+
+		int recordOff(int i) {
+			return buf.getInt(indexOff + 4 * i);
+		}
+
+		int compareKey(int off, byte[] key) {
+			int klen = buf.getInt(off);
+			int n = Math.min(klen, key.length);
+			for (int i = 0; i < n; i++) {
+				int c = (buf.get(off + 4 + i) & 0xff) - (key[i] & 0xff);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return klen - key.length;
+		}
+
+		byte[] keyAt(int i) {
+			int off = recordOff(i);
+			byte[] k = new byte[buf.getInt(off)];
+			for (int j = 0; j < k.length; j++) {
+				k[j] = buf.get(off + 4 + j);
+			}
+			return k;
+		}
+
+		byte[] valueAt(int i) {
+			int off = recordOff(i);
+			off += 4 + buf.getInt(off);
+			byte[] v = new byte[buf.getInt(off)];
+			for (int j = 0; j < v.length; j++) {
+				v[j] = buf.get(off + 4 + j);
+			}
+			return v;
+		}
+
+		byte[] get(byte[] key) {
+			int lo = 0;
+			int hi = count - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = compareKey(recordOff(mid), key);
+				if (c < 0) {
+					lo = mid + 1;
+				} else if (c > 0) {
+					hi = mid - 1;
+				} else {
+					return valueAt(mid);
+				}
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * Merges segments in key order, the newest value of a key wins.
+	 */
+	static class MergeIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		// Oldest first.
+		private final List<Segment> segs;
+		private final int[] pos;
+		private final byte[][] heads;
+
+		MergeIterator(List<Segment> segs) {
+			this.segs = segs;
+			pos = new int[segs.size()];
+			heads = new byte[segs.size()][];
+			for (int s = 0; s < heads.length; s++) {
+				heads[s] = segs.get(s).count > 0 ? segs.get(s).keyAt(0) : null;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			for (byte[] h : heads) {
+				if (h != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			int win = -1;
+			for (int s = 0; s < heads.length; s++) {
+				if (heads[s] != null && (win < 0 || BYTES.compare(heads[s], heads[win]) <= 0)) {
+					// Ties go to the later, newer, segment.
+					win = s;
+				}
+			}
+			if (win < 0) {
+				throw new NoSuchElementException();
+			}
+
+			byte[] key = heads[win];
+			byte[] val = segs.get(win).valueAt(pos[win]);
+			for (int s = 0; s < heads.length; s++) {
+				if (heads[s] != null && BYTES.compare(heads[s], key) == 0) {
+					pos[s]++;
+					heads[s] = pos[s] < segs.get(s).count ? segs.get(s).keyAt(pos[s]) : null;
+				}
+			}
+			return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, val);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private final File dir;
+	private final long memtableSize;
+	private final int maxSegments;
+	private final boolean sync;
+
+	private TreeMap<byte[], byte[]> memtable = new TreeMap<byte[], byte[]>(BYTES);
+	private long memtableBytes;
+	private FileOutputStream walFile;
+	private DataOutputStream wal;
+	// Oldest first.
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long nextSeg;
+
+	/**
+	 * Open or create the store in dir.
+	 *
+	 * @param memtableSize bytes of keys and values to hold before writing a segment.
+	 * @param maxSegments segments to allow before merging them.
+	 * @param sync whether to sync the log on every put.
+	 */
+	public LSMStore(File dir, long memtableSize, int maxSegments, boolean sync) throws IOException {
+		this.dir = dir;
+		this.memtableSize = memtableSize;
+		this.maxSegments = Math.max(1, maxSegments);
+		this.sync = sync;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		List<Long> ids = new ArrayList<Long>();
+		for (String name : dir.list()) {
+			if (name.endsWith(TMP_SUFFIX)) {
+				// Left behind by a crash mid-write.
+				new File(dir, name).delete();
+			} else if (name.startsWith(SEG_PREFIX) && name.endsWith(SEG_SUFFIX)) {
+				ids.add(Long.parseLong(name.substring(SEG_PREFIX.length(), name.length() - SEG_SUFFIX.length())));
+			}
+		}
+		Collections.sort(ids);
+		for (long id : ids) {
+			segments.add(new Segment(segFile(id), id));
+			nextSeg = id + 1;
+		}
+
+		replay();
+		walFile = new FileOutputStream(new File(dir, WAL), true);
+		wal = new DataOutputStream(new BufferedOutputStream(walFile, 1 << 16));
+
+		log.info("Opened " + dir + " with " + segments.size() + " segments and " + memtable.size() + " logged entries");
+	}
+
+	private File segFile(long id) {
+		return new File(dir, SEG_PREFIX + id + SEG_SUFFIX);
+	}
+
+	/*
+	 * Load the log into the memtable.  A crash can leave a record cut short
+	 * at the end; that tail is cut off so new records follow the last
+	 * complete one.
+	 */
+	private void replay() throws IOException {
+		File f = new File(dir, WAL);
+		if (!f.exists()) {
+			return;
+		}
+		long length = f.length();
+		// End of the last complete record.
+		long good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		try {
+			while (good < length) {
+				int klen = in.readInt();
+				if (klen < 0 || good + 8 + klen > length) {
+					break;
+				}
+				byte[] k = new byte[klen];
+				in.readFully(k);
+				int vlen = in.readInt();
+				if (vlen < 0 || good + 8 + klen + vlen > length) {
+					break;
+				}
+				byte[] v = new byte[vlen];
+				in.readFully(v);
+				putMem(k, v);
+				good += 8 + klen + vlen;
+			}
+		} catch (EOFException e) {
+			// A record cut short by a crash.
+		} finally {
+			in.close();
+		}
+
+		if (good < length) {
+			log.warn("Dropping " + (length - good) + " bytes of an incomplete record at the end of " + f);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private void putMem(byte[] k, byte[] v) {
+		byte[] old = memtable.put(k, v);
+		memtableBytes += v.length + (old == null ? k.length : -old.length);
+	}
+
+	public byte[] get(byte[] key) {
+		byte[] v = memtable.get(key);
+		for (int s = segments.size() - 1; v == null && s >= 0; s--) {
+			v = segments.get(s).get(key);
+		}
+		return v;
+	}
+
+	public void put(List<byte[]> keys, List<byte[]> vals) throws IOException {
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] k = keys.get(i);
+			byte[] v = vals.get(i);
+			wal.writeInt(k.length);
+			wal.write(k);
+			wal.writeInt(v.length);
+			wal.write(v);
+		}
+		wal.flush();
+		if (sync) {
+			walFile.getFD().sync();
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			putMem(keys.get(i), vals.get(i));
+		}
+		if (memtableBytes >= memtableSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the memtable out as a segment and start a new log.
+	 */
+	public void flush() throws IOException {
+		if (memtable.isEmpty()) {
+			return;
+		}
+		segments.add(writeSegment(memtable.entrySet().iterator()));
+		memtable = new TreeMap<byte[], byte[]>(BYTES);
+		memtableBytes = 0;
+
+		wal.close();
+		walFile = new FileOutputStream(new File(dir, WAL), false);
+		wal = new DataOutputStream(new BufferedOutputStream(walFile, 1 << 16));
+
+		if (segments.size() > maxSegments) {
+			compact();
+		}
+	}
+
+	/**
+	 * Merge every segment into one.
+	 */
+	public void compact() throws IOException {
+		if (segments.size() < 2) {
+			return;
+		}
+		List<Segment> old = new ArrayList<Segment>(segments);
+		Segment merged = writeSegment(new MergeIterator(old));
+		segments.clear();
+		segments.add(merged);
+		for (Segment s : old) {
+			// Readers still mapping it are fine, the data stays until unmapped.
+			if (!s.file.delete()) {
+				log.warn("Unable to delete " + s.file);
+			}
+		}
+		log.info("Compacted " + old.size() + " segments in " + dir + " into " + merged.count + " entries");
+	}
+
+	private Segment writeSegment(Iterator<Map.Entry<byte[], byte[]>> it) throws IOException {
+		long id = nextSeg++;
+		File tmp = new File(dir, SEG_PREFIX + id + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+		int[] offsets = new int[1024];
+		int n = 0;
+		try {
+			long pos = 0;
+			while (it.hasNext()) {
+				Map.Entry<byte[], byte[]> e = it.next();
+				if (n == offsets.length) {
+					offsets = Arrays.copyOf(offsets, n * 2);
+				}
+				offsets[n++] = (int) pos;
+				out.writeInt(e.getKey().length);
+				out.write(e.getKey());
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+				pos += 8 + e.getKey().length + e.getValue().length;
+				// Segments are mapped whole and indexed by int.
+				if (pos + 4L * n + FOOTER > Integer.MAX_VALUE) {
+					throw new IOException("Segment over 2GB in " + dir);
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				out.writeInt(offsets[i]);
+			}
+			out.writeInt(n);
+			out.writeLong(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		File f = segFile(id);
+		if (!tmp.renameTo(f)) {
+			throw new IOException("Unable to rename " + tmp + " to " + f);
+		}
+		return new Segment(f, id);
+	}
+
+	/**
+	 * @return the number of segments on disk.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		wal.close();
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal.state;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.piggybank.squeal.backend.storm.state.MetricsAwareCacheMap;
+
+import backtype.storm.task.IMetricsContext;
+import backtype.storm.tuple.Values;
+import storm.trident.state.JSONNonTransactionalSerializer;
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.JSONTransactionalSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+import storm.trident.state.State;
+import storm.trident.state.StateFactory;
+import storm.trident.state.StateType;
+import storm.trident.state.TransactionalValue;
+import storm.trident.state.map.IBackingMap;
+import storm.trident.state.map.MapState;
+import storm.trident.state.map.NonTransactionalMap;
+import storm.trident.state.map.OpaqueMap;
+import storm.trident.state.map.SnapshottableMap;
+import storm.trident.state.map.TransactionalMap;
+
+/**
+ * State kept by each task on its local disk in an LSMStore, one store
+ * per partition under dir/name/partition.  Values only survive with the
+ * host, and only while keys keep going to the same partition.
+ */
+public class LocalLSMState<T> implements IBackingMap<T> {
+
+	/*
+	 * Options for the local state.
+	 *  - name - Required, separates the states kept under dir.
+	 *  - dir - Where to keep the stores.
+	 *  - localCacheSize - Number of elements to hold in memory.
+	 *  - globlKey - Used for the SnapshottableMap
+	 *  - serialize - Used for object marshalling.
+	 *  - sep - Compound key separater.
+	 *  - memtableSize - Bytes to buffer before writing a segment.
+	 *  - maxSegments - Segments to allow before merging them.
+	 *  - sync - Sync the log on every multiPut.
+	 */
+	public static class LSMOptions<T> implements Serializable {
+		public String name = null;
+		public String dir = new File(System.getProperty("java.io.tmpdir"), "squeal-lsm").getPath();
+		public int localCacheSize = 1000;
+		public String globalKey = "$GLOBAL$";
+		public Serializer<T> serializer = null;
+		public Serializer key_serializer = null;
+		public String sep = "|";
+		public long memtableSize = 4 * 1024 * 1024;
+		public int maxSegments = 4;
+		public boolean sync = false;
+	}
+
+	public static StateFactory fromJSONArgs(HashMap args) {
+		// Create a default options:
+		LSMOptions opts = new LSMOptions();
+		// Specify a default storage type:
+		String storage_type = "NON_TRANSACTIONAL";
+
+		opts.name = (String) args.get("name");
+		if (opts.name == null) {
+			throw new RuntimeException("LocalLSMState needs a name");
+		}
+
+		// Pull out non-default stuff.
+		if (args.get("dir") != null) {
+			opts.dir = (String) args.get("dir");
+		}
+		if (args.get("localCacheSize") != null) {
+			opts.localCacheSize = Integer.parseInt(args.get("localCacheSize").toString());
+		}
+		if (args.get("globalKey") != null) {
+			opts.globalKey = (String) args.get("globalKey");
+		}
+		if (args.get("serializer") != null) {
+			String cn = (String) args.get("serializer");
+			// Special case here -- pull the class name and set it up.
+			try {
+				Class<?> cls = Class.forName(cn);
+				opts.serializer = (Serializer) cls.newInstance();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (args.get("key_serializer") != null) {
+			String cn = (String) args.get("key_serializer");
+			// Special case here -- pull the class name and set it up.
+			try {
+				Class<?> cls = Class.forName(cn);
+				opts.key_serializer = (Serializer) cls.newInstance();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (args.get("sep") != null) {
+			opts.sep = (String) args.get("sep");
+		}
+		if (args.get("memtableSize") != null) {
+			opts.memtableSize = Long.parseLong(args.get("memtableSize").toString());
+		}
+		if (args.get("maxSegments") != null) {
+			opts.maxSegments = Integer.parseInt(args.get("maxSegments").toString());
+		}
+		if (args.get("sync") != null) {
+			opts.sync = args.get("sync").toString().equalsIgnoreCase("true");
+		}
+
+		if (storage_type.equalsIgnoreCase("NON_TRANSACTIONAL")) {
+			return nonTransactional(opts);
+		} else if (storage_type.equalsIgnoreCase("OPAQUE")) {
+			return opaque(opts);
+		} else if (storage_type.equalsIgnoreCase("TRANSACTIONAL")) {
+			return transactional(opts);
+		} else {
+			throw new RuntimeException("Unknown storage type: " + storage_type);
+		}
+	}
+
+	/*
+	 * Helper routines for creating factories.
+	 */
+	public static StateFactory opaque(LSMOptions<OpaqueValue> opts) {
+		return new Factory(StateType.OPAQUE, opts);
+	}
+	public static StateFactory transactional(LSMOptions<TransactionalValue> opts) {
+		return new Factory(StateType.TRANSACTIONAL, opts);
+	}
+	public static StateFactory nonTransactional(LSMOptions<Object> opts) {
+		return new Factory(StateType.NON_TRANSACTIONAL, opts);
+	}
+
+	/*
+	 * Factory for creating LocalLSMStates.  Closing it closes the stores
+	 * it opened.
+	 */
+	protected static class Factory implements StateFactory, Closeable {
+		// Helper structure for easy lookup of serializers.
+		private static final Map<StateType, Serializer> DEFAULT_SERIALZERS = new HashMap<StateType, Serializer>() {{
+			put(StateType.NON_TRANSACTIONAL, new JSONNonTransactionalSerializer());
+			put(StateType.TRANSACTIONAL, new JSONTransactionalSerializer());
+			put(StateType.OPAQUE, new JSONOpaqueSerializer());
+		}};
+
+		StateType _type;
+		Serializer _ser;
+		LSMOptions _opts;
+		// Stores opened by this copy of the factory.
+		transient List<LSMStore> _stores;
+
+		public Factory(StateType type, LSMOptions options) {
+			_type = type;
+			_opts = options;
+			if(options.serializer==null) {
+				_ser = DEFAULT_SERIALZERS.get(type);
+				if(_ser==null) {
+					throw new RuntimeException("Couldn't find serializer for state type: " + type);
+				}
+			} else {
+				_ser = options.serializer;
+			}
+		}
+
+		@Override
+		public State makeState(Map conf, IMetricsContext m, int partitionIndex, int numPartitions) {
+			File dir = new File(new File(_opts.dir, _opts.name), Integer.toString(partitionIndex));
+			LSMStore store;
+			try {
+				store = new LSMStore(dir, _opts.memtableSize, _opts.maxSegments, _opts.sync);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			synchronized (this) {
+				if (_stores == null) {
+					_stores = new ArrayList<LSMStore>();
+				}
+				_stores.add(store);
+			}
+			LocalLSMState s = new LocalLSMState(store, _opts, _ser);
+			MetricsAwareCacheMap c = new MetricsAwareCacheMap(s, _opts.localCacheSize, conf);
+			MapState ms;
+			if(_type == StateType.NON_TRANSACTIONAL) {
+				ms = NonTransactionalMap.build(c);
+			} else if(_type==StateType.OPAQUE) {
+				ms = OpaqueMap.build(c);
+			} else if(_type==StateType.TRANSACTIONAL){
+				ms = TransactionalMap.build(c);
+			} else {
+				throw new RuntimeException("Unknown state type: " + _type);
+			}
+			return new SnapshottableMap(ms, new Values(_opts.globalKey));
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (_stores == null) {
+				return;
+			}
+			for (LSMStore store : _stores) {
+				store.close();
+			}
+			_stores = null;
+		}
+
+		public String toString() {
+			return "LocalLSMState.Factory@" + this.hashCode() + " dir: " + _opts.dir + " name: " + _opts.name;
+		}
+	}
+
+	private final LSMStore _store;
+	private LSMOptions _opts;
+	private Serializer _ser;
+	private final byte[] _sep;
+
+	public LocalLSMState(LSMStore store, LSMOptions opts, Serializer<T> ser) {
+		_store = store;
+		_opts = opts;
+		_ser = ser;
+		_sep = opts.sep.getBytes();
+	}
+
+	byte[] flattenKey(List<Object> keys) {
+		if (_opts.key_serializer != null) {
+			return _opts.key_serializer.serialize(keys);
+		}
+
+		if (keys.size() == 1) {
+			return keys.get(0).toString().getBytes();
+		}
+
+		byte[][] parts = new byte[keys.size()][];
+		int len = _sep.length * (parts.length - 1);
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = keys.get(i).toString().getBytes();
+			len += parts[i].length;
+		}
+		byte[] ret = new byte[len];
+		int off = 0;
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				System.arraycopy(_sep, 0, ret, off, _sep.length);
+				off += _sep.length;
+			}
+			System.arraycopy(parts[i], 0, ret, off, parts[i].length);
+			off += parts[i].length;
+		}
+
+		return ret;
+	}
+
+	@Override
+	public synchronized List<T> multiGet(List<List<Object>> keys) {
+		List<T> ret = new ArrayList<T>(keys.size());
+		for (List<Object> k : keys) {
+			byte[] res = _store.get(flattenKey(k));
+			ret.add(res == null ? null : (T) _ser.deserialize(res));
+		}
+		return ret;
+	}
+
+	@Override
+	public synchronized void multiPut(List<List<Object>> keys, List<T> vals) {
+		List<byte[]> flat = new ArrayList<byte[]>(keys.size());
+		List<byte[]> serialized = new ArrayList<byte[]>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			flat.add(flattenKey(keys.get(i)));
+			serialized.add(_ser.serialize(vals.get(i)));
+		}
+		try {
+			_store.put(flat, serialized);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public String toString() {
+		return "LocalLSMState@" + this.hashCode() + " name: " + _opts.name;
+	}
+}
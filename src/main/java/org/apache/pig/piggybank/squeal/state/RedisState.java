@@ -22,19 +22,30 @@ import backtype.storm.task.IMetricsContext;
 import backtype.storm.tuple.Values;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.pig.impl.PigContext;
 import org.apache.pig.piggybank.squeal.backend.storm.state.MetricsAwareCacheMap;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisShardInfo;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import storm.trident.state.JSONNonTransactionalSerializer;
 import storm.trident.state.JSONOpaqueSerializer;
 import storm.trident.state.JSONTransactionalSerializer;
@@ -62,6 +73,12 @@ public class RedisState<T> implements IBackingMap<T> {
 	 *  - expiration - Expiration in seconds for elements.
 	 *  - dbNum - database to select upon connect.
 	 *  - sep - Compound key separater.
+	 *  - pooled - Borrow connections from a pool per shard and batch
+	 *    with MGET/MSET instead of one ShardedJedis per state.  Keys are
+	 *    built as UTF-8 bytes (a key_serializer's bytes as is), which can
+	 *    differ from the non-pooled keys.
+	 *  - poolSize - Connections per shard pool.
+	 *  - batchSize - Keys per MGET/MSET when pooled.
 	 */
 	public static class RedisOptions<T> implements Serializable {
         public int localCacheSize = 1000;
@@ -70,7 +87,10 @@ public class RedisState<T> implements IBackingMap<T> {
         public Serializer key_serializer = null;
         public int expiration = 0;
         public int dbNum = 0;
-        public String sep = "|";        
+        public String sep = "|";
+        public boolean pooled = false;
+        public int poolSize = 8;
+        public int batchSize = 500;
     }
 	
 	public static StateFactory fromJSONArgs(HashMap args) {
@@ -117,6 +137,16 @@ public class RedisState<T> implements IBackingMap<T> {
 		if (args.get("sep") != null) {
 			opts.sep = (String) args.get("sep");
 		}
+		if (args.get("pooled") != null) {
+			String v = args.get("pooled").toString().substring(0, 1);
+			opts.pooled = v.equalsIgnoreCase("t") || v.equalsIgnoreCase("1");
+		}
+		if (args.get("poolSize") != null) {
+			opts.poolSize = Integer.parseInt(args.get("poolSize").toString());
+		}
+		if (args.get("batchSize") != null) {
+			opts.batchSize = Integer.parseInt(args.get("batchSize").toString());
+		}
 		
 		if (storage_type.equalsIgnoreCase("NON_TRANSACTIONAL")) {
 			return nonTransactional(servers, opts);
@@ -180,7 +210,12 @@ public class RedisState<T> implements IBackingMap<T> {
 
         @Override
         public State makeState(Map conf, IMetricsContext m, int partitionIndex, int numPartitions) {
-            RedisState s = new RedisState(makeRedisClient(_servers), _opts, _ser);
+            RedisState s;
+            if (_opts.pooled) {
+            	s = new RedisState(new PooledShards(_servers, _opts), _opts, _ser);
+            } else {
+            	s = new RedisState(makeRedisClient(_servers), _opts, _ser);
+            }
 //            CachedMap c = new CachedMap(s, _opts.localCacheSize);
             MetricsAwareCacheMap c = new MetricsAwareCacheMap(s, _opts.localCacheSize, conf);
             MapState ms;
@@ -216,14 +251,89 @@ public class RedisState<T> implements IBackingMap<T> {
     	return new ShardedJedis(shards);
     }
     
+    /*
+     * A JedisPool per shard.  Pools are shared by every state in the
+     * worker that uses the same server and db.  Keys land on the same
+     * shards as they would through ShardedJedis.
+     */
+    static class PooledShards {
+    	private static final Map<String, JedisPool> POOLS = new HashMap<String, JedisPool>();
+
+    	// Only used to hash keys, its connections are never opened.
+    	private final ShardedJedis ring;
+    	private final Map<JedisShardInfo, JedisPool> pools = new HashMap<JedisShardInfo, JedisPool>();
+
+    	PooledShards(String servers, RedisOptions opts) {
+    		ring = makeRedisClient(servers);
+    		for (JedisShardInfo info : ring.getAllShardInfo()) {
+    			pools.put(info, getPool(info, opts));
+    		}
+    	}
+
+    	private static synchronized JedisPool getPool(JedisShardInfo info, RedisOptions opts) {
+    		String k = info.getHost() + ":" + info.getPort() + "/" + opts.dbNum;
+    		JedisPool pool = POOLS.get(k);
+    		if (pool == null) {
+    			JedisPoolConfig cfg = new JedisPoolConfig();
+    			cfg.setMaxActive(opts.poolSize);
+    			cfg.setMaxIdle(opts.poolSize);
+    			pool = new JedisPool(cfg, info.getHost(), info.getPort(), info.getTimeout(), 
+    					info.getPassword(), opts.dbNum);
+    			POOLS.put(k, pool);
+    		}
+    		return pool;
+    	}
+
+    	JedisPool getPool(byte[] key) {
+    		return pools.get(ring.getShardInfo(key));
+    	}
+    }
+
+    /*
+     * Work for one shard over the given key indexes.
+     */
+    interface ShardOp {
+    	void run(Jedis j, List<Integer> idx);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static ExecutorService shardThreads;
+
+    private static synchronized ExecutorService getShardThreads() {
+    	if (shardThreads == null) {
+    		shardThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "redis-shard");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return shardThreads;
+    }
+
     private final ShardedJedis _client;
+    private final PooledShards _pools;
     private RedisOptions _opts;
     private Serializer _ser;
+    private final byte[] _sep;
     
     public RedisState(ShardedJedis client, RedisOptions opts, Serializer<T> ser) {
         _client = client;
+        _pools = null;
+        _opts = opts;
+        _ser = ser;
+        _sep = null;
+    }
+
+    public RedisState(PooledShards pools, RedisOptions opts, Serializer<T> ser) {
+        _client = null;
+        _pools = pools;
         _opts = opts;
         _ser = ser;
+        _sep = opts.sep.getBytes(UTF8);
     }
     
     String flattenKey(List<Object> keys) {
@@ -246,6 +356,40 @@ public class RedisState<T> implements IBackingMap<T> {
     	return sb.toString();
     }
 
+    /*
+     * The pooled keys are built as bytes, skipping the String round trip.  A
+     * key_serializer's output is used as is, so these keys can differ from the
+     * ones flattenKey gives for the same values.
+     */
+    byte[] flattenKeyBytes(List<Object> keys) {
+		if (_opts.key_serializer != null) {
+			return _opts.key_serializer.serialize(keys);
+		}
+    	
+    	if (keys.size() == 1) {
+    		return keys.get(0).toString().getBytes(UTF8);
+    	}
+    	
+    	byte[][] parts = new byte[keys.size()][];
+    	int len = _sep.length * (parts.length - 1);
+    	for (int i = 0; i < parts.length; i++) {
+    		parts[i] = keys.get(i).toString().getBytes(UTF8);
+    		len += parts[i].length;
+    	}
+    	byte[] ret = new byte[len];
+    	int off = 0;
+    	for (int i = 0; i < parts.length; i++) {
+    		if (i > 0) {
+    			System.arraycopy(_sep, 0, ret, off, _sep.length);
+    			off += _sep.length;
+    		}
+    		System.arraycopy(parts[i], 0, ret, off, parts[i].length);
+    		off += parts[i].length;
+    	}
+    	
+    	return ret;
+    }
+
     Pipeline getPipeline(Map<Jedis, Pipeline> state, String flat) {
     	Jedis shard = _client.getShard(flat);
 //    	System.out.println("getPipeLine: " + flat + " " + shard.getClient().getHost());
@@ -262,6 +406,10 @@ public class RedisState<T> implements IBackingMap<T> {
 
     @Override
     public List<T> multiGet(List<List<Object>> keys) {
+    	if (_pools != null) {
+    		return pooledGet(keys);
+    	}
+    	
     	Map<Jedis, Pipeline> state = new HashMap<Jedis, Pipeline>();
     	List<Response<byte[]>> responses = new ArrayList<Response<byte[]>>(keys.size());
     	
@@ -288,15 +436,7 @@ public class RedisState<T> implements IBackingMap<T> {
     		
     		byte[] res = r.get();
 //    		System.out.println("RedisState.multiGet: res.length " + (res == null ? null : res.length));
-    		if (res != null) {
-                T val = (T)_ser.deserialize(res);
-//                if (keys.get(ret.size()).toString().equals("[Mitt_Romney]")) {
-//                	System.err.println("get '" + keys.get(ret.size()) + "' = " + res + " : " + val);
-//                }
-                ret.add(val);
-              } else {
-                ret.add(null);
-              }
+    		ret.add(deserialize(res));
     	}
     	
         return ret;
@@ -304,6 +444,11 @@ public class RedisState<T> implements IBackingMap<T> {
 
     @Override
     public void multiPut(List<List<Object>> keys, List<T> vals) {
+    	if (_pools != null) {
+    		pooledPut(keys, vals);
+    		return;
+    	}
+    	
     	Map<Jedis, Pipeline> state = new HashMap<Jedis, Pipeline>();
     	
     	// Map each key to a shard and queue up a pipeline
@@ -331,4 +476,144 @@ public class RedisState<T> implements IBackingMap<T> {
     		p.sync();
     	}
     }
+
+    private T deserialize(byte[] res) {
+    	if (res == null) {
+    		return null;
+    	}
+    	return (T) _ser.deserialize(res);
+    }
+    
+    /*
+     * Flatten the keys into flat and group their indexes by shard.
+     */
+    private Map<JedisPool, List<Integer>> groupByShard(List<List<Object>> keys, byte[][] flat) {
+    	Map<JedisPool, List<Integer>> byShard = new LinkedHashMap<JedisPool, List<Integer>>();
+    	for (int i = 0; i < flat.length; i++) {
+    		flat[i] = flattenKeyBytes(keys.get(i));
+    		JedisPool pool = _pools.getPool(flat[i]);
+    		List<Integer> idx = byShard.get(pool);
+    		if (idx == null) {
+    			idx = new ArrayList<Integer>();
+    			byShard.put(pool, idx);
+    		}
+    		idx.add(i);
+    	}
+    	return byShard;
+    }
+    
+    private static void runOnShard(JedisPool pool, List<Integer> idx, ShardOp op) {
+    	Jedis j = pool.getResource();
+    	try {
+    		op.run(j, idx);
+    	} catch (JedisConnectionException e) {
+    		pool.returnBrokenResource(j);
+    		j = null;
+    		throw e;
+    	} finally {
+    		if (j != null) {
+    			pool.returnResource(j);
+    		}
+    	}
+    }
+    
+    /*
+     * Run op for every shard, the shards side by side.
+     */
+    private void runPerShard(Map<JedisPool, List<Integer>> byShard, final ShardOp op) {
+    	if (byShard.size() == 1) {
+    		Map.Entry<JedisPool, List<Integer>> e = byShard.entrySet().iterator().next();
+    		runOnShard(e.getKey(), e.getValue(), op);
+    		return;
+    	}
+    	
+    	List<Future<Void>> pending = new ArrayList<Future<Void>>(byShard.size());
+    	for (final Map.Entry<JedisPool, List<Integer>> e : byShard.entrySet()) {
+    		pending.add(getShardThreads().submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					runOnShard(e.getKey(), e.getValue(), op);
+					return null;
+				}
+    		}));
+    	}
+    	for (Future<Void> f : pending) {
+    		try {
+    			f.get();
+    		} catch (InterruptedException e) {
+    			throw new RuntimeException(e);
+    		} catch (ExecutionException e) {
+    			throw new RuntimeException(e.getCause());
+    		}
+    	}
+    }
+    
+    private List<T> pooledGet(List<List<Object>> keys) {
+    	final byte[][] flat = new byte[keys.size()][];
+    	final byte[][] found = new byte[keys.size()][];
+    	final int batch = _opts.batchSize;
+    	
+    	runPerShard(groupByShard(keys, flat), new ShardOp() {
+			@Override
+			public void run(Jedis j, List<Integer> idx) {
+				Pipeline p = j.pipelined();
+				List<Response<List<byte[]>>> responses = new ArrayList<Response<List<byte[]>>>();
+				for (int s = 0; s < idx.size(); s += batch) {
+					byte[][] chunk = new byte[Math.min(batch, idx.size() - s)][];
+					for (int i = 0; i < chunk.length; i++) {
+						chunk[i] = flat[idx.get(s + i)];
+					}
+					responses.add(p.mget(chunk));
+				}
+				p.sync();
+				
+				int i = 0;
+				for (Response<List<byte[]>> r : responses) {
+					for (byte[] v : r.get()) {
+						found[idx.get(i++)] = v;
+					}
+				}
+			}
+    	});
+    	
+    	List<T> ret = new ArrayList<T>(keys.size());
+    	for (byte[] res : found) {
+    		ret.add(deserialize(res));
+    	}
+    	return ret;
+    }
+    
+    private void pooledPut(List<List<Object>> keys, List<T> vals) {
+    	final byte[][] flat = new byte[keys.size()][];
+    	final byte[][] serialized = new byte[keys.size()][];
+    	for (int i = 0; i < serialized.length; i++) {
+    		serialized[i] = _ser.serialize(vals.get(i));
+    	}
+    	final int batch = _opts.batchSize;
+    	final int expiration = _opts.expiration;
+    	
+    	runPerShard(groupByShard(keys, flat), new ShardOp() {
+			@Override
+			public void run(Jedis j, List<Integer> idx) {
+				Pipeline p = j.pipelined();
+				if (expiration != 0) {
+					// MSET can't expire keys.
+					for (int i : idx) {
+						p.setex(flat[i], expiration, serialized[i]);
+					}
+				} else {
+					for (int s = 0; s < idx.size(); s += batch) {
+						int n = Math.min(batch, idx.size() - s);
+						byte[][] kv = new byte[2 * n][];
+						for (int i = 0; i < n; i++) {
+							kv[2 * i] = flat[idx.get(s + i)];
+							kv[2 * i + 1] = serialized[idx.get(s + i)];
+						}
+						p.mset(kv);
+					}
+				}
+				p.sync();
+			}
+    	});
+    }
 }
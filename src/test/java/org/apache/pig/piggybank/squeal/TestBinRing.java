@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pig.piggybank.squeal.binner.BinRing;
+
+import junit.framework.TestCase;
+import storm.trident.tuple.TridentTuple;
+
+public class TestBinRing extends TestCase {
+
+	static class Collect implements BinRing.Drain {
+		List<Object> keys = new ArrayList<Object>();
+
+		@Override
+		public void take(Integer dest, Object aKey, TridentTuple tup) {
+			keys.add(aKey);
+		}
+	}
+
+	public void testBounded() {
+		BinRing ring = new BinRing(7, 4);
+		assertEquals(4, ring.capacity());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i, null));
+		}
+		assertFalse(ring.offer(4, null));
+
+		Collect c = new Collect();
+		assertEquals(4, ring.drain(c));
+		assertTrue(ring.isEmpty());
+		assertTrue(ring.offer(4, null));
+		assertEquals(1, ring.drain(c));
+		assertEquals(5, c.keys.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i, c.keys.get(i));
+		}
+	}
+
+	public void testConcurrent() throws Exception {
+		final int n = 1000000;
+		final BinRing ring = new BinRing(7, 64);
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < n; i++) {
+					while (!ring.offer(i, null)) {
+						Thread.yield();
+					}
+				}
+			}
+		};
+		producer.start();
+
+		// Everything arrives once and in order.
+		final int[] next = new int[1];
+		BinRing.Drain check = new BinRing.Drain() {
+			@Override
+			public void take(Integer dest, Object aKey, TridentTuple tup) {
+				assertEquals(next[0]++, aKey);
+			}
+		};
+		while (next[0] < n) {
+			ring.drain(check);
+		}
+		producer.join();
+		assertTrue(ring.isEmpty());
+	}
+}
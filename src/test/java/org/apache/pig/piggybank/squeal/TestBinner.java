@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.piggybank.squeal.binner.BinGrouping;
+import org.apache.pig.piggybank.squeal.binner.Binner;
+
+import junit.framework.TestCase;
+import storm.trident.tuple.TridentTupleView;
+import backtype.storm.generated.Grouping;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.utils.Utils;
+
+public class TestBinner extends TestCase {
+
+	static class Recorder implements IOutputCollector {
+		List<Tuple> anchors = new ArrayList<Tuple>();
+		List<List<Object>> bins = new ArrayList<List<Object>>();
+
+		@Override
+		public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			assertEquals("binned", streamId);
+			assertEquals(1, anchors.size());
+			this.anchors.add(anchors.iterator().next());
+			bins.add(tuple);
+			return null;
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+			throw new RuntimeException("Not expected");
+		}
+
+		@Override
+		public void ack(Tuple input) {
+		}
+
+		@Override
+		public void fail(Tuple input) {
+		}
+
+		@Override
+		public void reportError(Throwable error) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	// Input tuples are only compared by identity.
+	static Tuple input() {
+		return (Tuple) Proxy.newProxyInstance(Tuple.class.getClassLoader(), new Class[] { Tuple.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (method.getName().equals("equals")) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	// Task 1 bins for the two tasks of "down", which group on "word".
+	static TopologyContext context() {
+		Map<Integer, String> taskToComponent = new HashMap<Integer, String>();
+		taskToComponent.put(1, "up");
+		taskToComponent.put(2, "down");
+		taskToComponent.put(3, "down");
+		Map<String, List<Integer>> componentToTasks = new HashMap<String, List<Integer>>();
+		componentToTasks.put("up", Arrays.asList(1));
+		componentToTasks.put("down", Arrays.asList(2, 3));
+
+		final Map<String, Map<String, Grouping>> targets = new HashMap<String, Map<String, Grouping>>();
+		targets.put("binned", new HashMap<String, Grouping>());
+		targets.get("binned").put("down", Grouping.custom_serialized(Utils.serialize(new BinGrouping(new Fields("word")))));
+
+		return new TopologyContext(null, null, taskToComponent, componentToTasks, null,
+				null, null, null, 1, null, null, null, null, null, null, null) {
+			@Override
+			public Map<String, Map<String, Grouping>> getThisTargets() {
+				return targets;
+			}
+		};
+	}
+
+	int decode(Map conf, List<Object> bin) {
+		// Every row has to be in the bin of its slot.
+		int slot = (Integer) bin.get(0);
+		Binner.BinDecoder dec = new Binner.BinDecoder(conf);
+		dec.reset((byte[]) bin.get(1));
+		int rows = 0;
+		List<Object> row;
+		while (null != (row = dec.next())) {
+			assertEquals(slot, Math.abs(Arrays.asList(row.get(0)).hashCode() % 2));
+			rows++;
+		}
+		return rows;
+	}
+
+	public void testAsyncBinsGoOutBeforeFlush() throws Exception {
+		Map conf = Utils.readDefaultConfig();
+		conf.put(Binner.ASYNC_CONF, true);
+		conf.put(Binner.WRITE_THRESH_CONF, 100);
+		Recorder rec = new Recorder();
+		Binner binner = new Binner();
+		binner.prepare(conf, context(), new OutputCollector(rec), "binned");
+
+		// Keep feeding until the encoder has finished a bin, each one goes
+		// out on a later emit anchored to that emit's input.
+		Fields fields = new Fields("word", "count");
+		int n = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (rec.bins.isEmpty()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Tuple in = input();
+			binner.emit(TridentTupleView.createFreshTuple(fields, "word-" + (n % 13), n), in);
+			n++;
+			for (Tuple anchor : rec.anchors) {
+				assertSame(in, anchor);
+			}
+			if (n > 100) {
+				Thread.sleep(1);
+			}
+		}
+
+		int rows = 0;
+		for (List<Object> bin : rec.bins) {
+			rows += decode(conf, bin);
+		}
+		assertTrue(rows > 0);
+		assertTrue(rows < n);
+
+		// The flush sends the rest.
+		int before = rec.bins.size();
+		Tuple in = input();
+		binner.flush(in);
+		for (int i = before; i < rec.bins.size(); i++) {
+			assertSame(in, rec.anchors.get(i));
+			rows += decode(conf, rec.bins.get(i));
+		}
+		assertEquals(n, rows);
+		binner.cleanup();
+	}
+
+	public void testReadyBound() throws Exception {
+		// Every bin makes the encoder wait for the bolt thread, and the
+		// rings fill up behind it.
+		Map conf = Utils.readDefaultConfig();
+		conf.put(Binner.ASYNC_CONF, true);
+		conf.put(Binner.WRITE_THRESH_CONF, 100);
+		conf.put(Binner.ASYNC_RING_SIZE_CONF, 4);
+		conf.put(Binner.ASYNC_READY_BYTES_CONF, 1);
+		Recorder rec = new Recorder();
+		Binner binner = new Binner();
+		binner.prepare(conf, context(), new OutputCollector(rec), "binned");
+
+		Fields fields = new Fields("word", "count");
+		for (int n = 0; n < 5000; n++) {
+			binner.emit(TridentTupleView.createFreshTuple(fields, "word-" + (n % 13), n), input());
+		}
+		binner.flush(input());
+
+		int rows = 0;
+		for (List<Object> bin : rec.bins) {
+			rows += decode(conf, bin);
+		}
+		assertEquals(5000, rows);
+		binner.cleanup();
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.io.NullableLongWritable;
+import org.apache.pig.impl.io.NullableText;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.piggybank.squeal.binner.ColumnarBin;
+
+import com.esotericsoftware.kryo.io.Input;
+
+import junit.framework.TestCase;
+import backtype.storm.serialization.KryoValuesDeserializer;
+import backtype.storm.serialization.KryoValuesSerializer;
+import backtype.storm.utils.Utils;
+
+public class TestColumnarBin extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		Map conf = Utils.readDefaultConfig();
+		ColumnarBin.Writer w = new ColumnarBin.Writer(new KryoValuesSerializer(conf), 1024);
+		ColumnarBin.Reader r = new ColumnarBin.Reader(new KryoValuesDeserializer(conf));
+
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 100; i++) {
+			NullableText key = new NullableText("key" + (i % 7));
+			key.setIndex((byte) (i % 3));
+			NullableLongWritable count = new NullableLongWritable(-i * 1000000000L);
+			if (i % 5 == 0) {
+				count.setNull(true);
+			}
+			NullableTuple val = new NullableTuple(TupleFactory.getInstance().newTuple(Arrays.<Object>asList("v" + i, i)));
+
+			List<Object> row = Arrays.<Object>asList(key, count, val, i % 4 == 0 ? null : Integer.valueOf(-i), "s" + (i % 3));
+			rows.add(row);
+			w.add(row);
+		}
+
+		Input in = new Input(w.toBytes());
+		int header = in.readInt();
+		assertTrue(header < 0);
+		r.reset(in, ~header);
+
+		for (List<Object> expected : rows) {
+			List<Object> got = r.next();
+			assertEquals(expected.size(), got.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i), got.get(i));
+			}
+			assertEquals(((NullableText) expected.get(0)).getIndex(), ((NullableText) got.get(0)).getIndex());
+		}
+		assertNull(r.next());
+	}
+
+	public void testReset() throws Exception {
+		Map conf = Utils.readDefaultConfig();
+		ColumnarBin.Writer w = new ColumnarBin.Writer(new KryoValuesSerializer(conf), 1024);
+		ColumnarBin.Reader r = new ColumnarBin.Reader(new KryoValuesDeserializer(conf));
+
+		w.add(Arrays.<Object>asList("a", 1L));
+		w.reset();
+		// Dictionaries start over with the bin.
+		w.add(Arrays.<Object>asList("a", 2L));
+
+		Input in = new Input(w.toBytes());
+		r.reset(in, ~in.readInt());
+		assertEquals(Arrays.<Object>asList("a", 2L), r.next());
+		assertNull(r.next());
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.piggybank.squeal.flexy.executors.Stage1Executor;
+import org.apache.pig.piggybank.squeal.flexy.topo.FlexyMasterSpout;
+
+import backtype.storm.spout.ISpoutOutputCollector;
+import backtype.storm.spout.SpoutOutputCollector;
+
+import junit.framework.TestCase;
+
+public class TestFlexyMasterSpout extends TestCase {
+
+	static class Emitted {
+		String stream;
+		List<Object> values;
+		Object msgId;
+	}
+
+	static class RecordingCollector implements ISpoutOutputCollector {
+		List<Emitted> emitted = new ArrayList<Emitted>();
+
+		@Override
+		public List<Integer> emit(String streamId, List<Object> tuple, Object messageId) {
+			Emitted e = new Emitted();
+			e.stream = streamId;
+			e.values = tuple;
+			e.msgId = messageId;
+			emitted.add(e);
+			return null;
+		}
+
+		@Override
+		public void emitDirect(int taskId, String streamId, List<Object> tuple, Object messageId) {
+			throw new RuntimeException("Not expected");
+		}
+
+		@Override
+		public void reportError(Throwable error) {
+			throw new RuntimeException(error);
+		}
+
+		// Pull the emits since the last call.
+		List<Emitted> drain() {
+			List<Emitted> ret = emitted;
+			emitted = new ArrayList<Emitted>();
+			return ret;
+		}
+	}
+
+	RecordingCollector rc;
+	FlexyMasterSpout master;
+
+	void open(boolean stateful, boolean asyncCommit, int depth) {
+		Map conf = new HashMap();
+		conf.put(Stage1Executor.ASYNC_COMMIT_CONF, asyncCommit);
+		conf.put(FlexyMasterSpout.PIPELINE_DEPTH_CONF, depth);
+		rc = new RecordingCollector();
+		master = new FlexyMasterSpout(stateful);
+		master.open(conf, null, new SpoutOutputCollector(rc));
+	}
+
+	Emitted only(String stream) {
+		List<Emitted> out = rc.drain();
+		assertEquals(1, out.size());
+		assertEquals(stream, out.get(0).stream);
+		return out.get(0);
+	}
+
+	Emitted next(String stream) {
+		master.nextTuple();
+		return only(stream);
+	}
+
+	static long lastCommitted(Emitted start) {
+		return ((Number) start.values.get(2)).longValue();
+	}
+
+	static boolean lastFailed(Emitted start) {
+		return (Boolean) start.values.get(1);
+	}
+
+	public void testAsyncCommitAckedAfterWrite() {
+		open(false, true, 1);
+
+		// Batch 0 propagates and its commit goes out with batch 1.
+		master.ack(next("start").msgId);
+		master.nextTuple();
+		List<Emitted> out = rc.drain();
+		assertEquals(2, out.size());
+		assertEquals("commit", out.get(0).stream);
+		assertEquals("start", out.get(1).stream);
+		master.ack(out.get(0).msgId);
+		master.ack(out.get(1).msgId);
+
+		// The commit of batch 0 only handed its write off, nothing is acked yet.
+		master.nextTuple();
+		out = rc.drain();
+		assertEquals("commit", out.get(0).stream);
+		assertEquals(-1, lastCommitted(out.get(1)));
+
+		// The commit of batch 1 waited on that write, batch 0 is safe now.
+		master.ack(out.get(0).msgId);
+		master.ack(out.get(1).msgId);
+		master.nextTuple();
+		out = rc.drain();
+		assertEquals(0, lastCommitted(out.get(1)));
+	}
+
+	public void testFailedWriteReplays() {
+		open(false, true, 1);
+
+		master.ack(next("start").msgId);
+		master.nextTuple();
+		List<Emitted> out = rc.drain();
+		master.ack(out.get(0).msgId);
+		master.ack(out.get(1).msgId);
+
+		// The write of batch 0 fails, which fails the commit of batch 1.
+		master.nextTuple();
+		out = rc.drain();
+		assertEquals("commit", out.get(0).stream);
+		master.fail(out.get(0).msgId);
+		master.ack(out.get(1).msgId);
+
+		// Roll back, then the next start must fail batch 0 back to the spouts.
+		Emitted rollback = next("commit");
+		assertEquals(false, rollback.values.get(1));
+		master.ack(rollback.msgId);
+		Emitted start = next("start");
+		assertTrue(lastFailed(start));
+		assertEquals(-1, lastCommitted(start));
+	}
+
+	public void testSyncCommitAcksImmediately() {
+		open(true, false, 1);
+
+		master.ack(next("start").msgId);
+		master.ack(next("commit").msgId);
+		assertEquals(0, lastCommitted(next("start")));
+	}
+
+	public void testLaterBatchFailsWhileCommitting() {
+		// Without state batch 1 runs while batch 0 commits.
+		open(false, false, 2);
+		Emitted start0 = next("start");
+		Emitted start1 = next("start");
+		master.ack(start0.msgId);
+		Emitted commit0 = next("commit");
+		master.fail(start1.msgId);
+		master.ack(commit0.msgId);
+
+		// Batch 0 stays committed, only batch 1 is replayed.
+		master.ack(next("commit").msgId);
+		Emitted start = next("start");
+		assertTrue(lastFailed(start));
+		assertEquals(0, lastCommitted(start));
+	}
+
+	public void testStatefulOneBatchAtATime() {
+		// The depth is ignored and the commit of batch 0 has to be through
+		// before batch 1 may put anything in the caches.
+		open(true, true, 3);
+		Emitted start0 = next("start");
+		master.nextTuple();
+		assertEquals(0, rc.drain().size());
+		master.ack(start0.msgId);
+		Emitted commit0 = next("commit");
+		master.nextTuple();
+		assertEquals(0, rc.drain().size());
+		master.ack(commit0.msgId);
+
+		// Batch 1 fails after the commit, the rollback confirms the write of batch 0.
+		Emitted start1 = next("start");
+		master.fail(start1.msgId);
+		master.ack(next("commit").msgId);
+		Emitted start = next("start");
+		assertTrue(lastFailed(start));
+		assertEquals(0, lastCommitted(start));
+	}
+
+	int startsInFlight(boolean stateful) {
+		open(stateful, false, 3);
+		int starts = 0;
+		for (int i = 0; i < 5; i++) {
+			master.nextTuple();
+			starts += rc.drain().size();
+		}
+		return starts;
+	}
+
+	public void testDepthOnlyWithoutGroupBy() {
+		// A GROUP BY free script keeps three batches going, one with a
+		// GROUP BY is held to a single batch whatever the depth says.
+		assertEquals(3, startsInFlight(false));
+		assertEquals(1, startsInFlight(true));
+	}
+}
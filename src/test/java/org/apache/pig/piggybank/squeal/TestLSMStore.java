@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.pig.piggybank.squeal.state.LSMStore;
+
+import junit.framework.TestCase;
+
+public class TestLSMStore extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("lsm", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	static void put(LSMStore store, Map<String, String> expected, String k, String v) throws Exception {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		List<byte[]> vals = new ArrayList<byte[]>();
+		keys.add(bytes(k));
+		vals.add(bytes(v));
+		store.put(keys, vals);
+		expected.put(k, v);
+	}
+
+	static void check(LSMStore store, Map<String, String> expected, int keys) {
+		for (int i = 0; i < keys; i++) {
+			String k = "key-" + i;
+			byte[] v = store.get(bytes(k));
+			assertEquals(k, expected.get(k), v == null ? null : new String(v));
+		}
+	}
+
+	public void testFlushCompactReopen() throws Exception {
+		Random r = new Random(5);
+		Map<String, String> expected = new HashMap<String, String>();
+
+		// Small tables so the run writes and merges plenty of segments.
+		LSMStore store = new LSMStore(dir, 2048, 3, false);
+		for (int n = 0; n < 5000; n++) {
+			put(store, expected, "key-" + r.nextInt(700), "value-" + n);
+		}
+		assertTrue(store.getSegmentCount() <= 4);
+		check(store, expected, 800);
+		store.close();
+
+		// Segments and the unflushed log come back.
+		store = new LSMStore(dir, 2048, 3, false);
+		check(store, expected, 800);
+		store.compact();
+		assertEquals(1, store.getSegmentCount());
+		check(store, expected, 800);
+		store.close();
+	}
+
+	public void testTornLogTail() throws Exception {
+		Map<String, String> expected = new HashMap<String, String>();
+
+		// Everything stays in the log.
+		LSMStore store = new LSMStore(dir, 1 << 20, 3, false);
+		for (int n = 0; n < 10; n++) {
+			put(store, expected, "key-" + n, "value-" + n);
+		}
+		store.close();
+
+		// A crash in the middle of the last record.
+		File wal = new File(dir, "wal.log");
+		RandomAccessFile raf = new RandomAccessFile(wal, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		expected.remove("key-9");
+
+		store = new LSMStore(dir, 1 << 20, 3, false);
+		check(store, expected, 12);
+		put(store, expected, "key-10", "value-10");
+		put(store, expected, "key-3", "value-again");
+		store.close();
+
+		// The new records follow the last complete one.
+		store = new LSMStore(dir, 1 << 20, 3, false);
+		check(store, expected, 12);
+		store.close();
+	}
+}
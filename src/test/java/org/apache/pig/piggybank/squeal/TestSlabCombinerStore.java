@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.pig.piggybank.squeal.flexy.executors.CombinerStore;
+import org.apache.pig.piggybank.squeal.flexy.executors.SlabCombinerStore;
+
+import junit.framework.TestCase;
+import storm.trident.operation.CombinerAggregator;
+import storm.trident.tuple.TridentTuple;
+
+public class TestSlabCombinerStore extends TestCase {
+
+	static class Sum implements CombinerAggregator<Long> {
+		@Override
+		public Long init(TridentTuple tuple) {
+			return 1L;
+		}
+
+		@Override
+		public Long combine(Long val1, Long val2) {
+			return val1 + val2;
+		}
+
+		@Override
+		public Long zero() {
+			return 0L;
+		}
+	}
+
+	static class Collect implements CombinerStore.EvictionListener<Long> {
+		Map<Writable, Long> seen = new HashMap<Writable, Long>();
+		int count = 0;
+
+		@Override
+		public void onEvict(Writable key, Long value) {
+			count++;
+			Long cur = seen.get(key);
+			seen.put(key, cur == null ? value : cur + value);
+		}
+	}
+
+	void add(CombinerStore<Long> store, int k, long v) {
+		IntWritable key = new IntWritable(k);
+		store.put(key, store.get(key) + v);
+	}
+
+	public void testCombineAndFlush() {
+		Collect c = new Collect();
+		SlabCombinerStore<Long> store = new SlabCombinerStore<Long>(new Sum(), 100, 60000, 1024, c);
+
+		for (int i = 0; i < 1000; i++) {
+			add(store, i % 10, 1);
+		}
+		assertEquals(10, store.size());
+		assertEquals(0, c.count);
+
+		store.invalidateAll();
+		assertEquals(0, store.size());
+		assertEquals(10, c.count);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Long.valueOf(100), c.seen.get(new IntWritable(i)));
+		}
+	}
+
+	public void testSizeEvictionKeepsTotals() {
+		Collect c = new Collect();
+		// Small slab to force compaction along the way.
+		SlabCombinerStore<Long> store = new SlabCombinerStore<Long>(new Sum(), 64, 60000, 16, c);
+
+		long total = 0;
+		for (int i = 0; i < 50000; i++) {
+			add(store, (i * 31) % 5000, i % 7);
+			total += i % 7;
+			assertTrue(store.size() <= 64);
+		}
+		store.invalidateAll();
+
+		long seen = 0;
+		for (Long v : c.seen.values()) {
+			seen += v;
+		}
+		assertEquals(total, seen);
+		assertEquals(5000, c.seen.size());
+	}
+
+	public void testLeastRecentlyWrittenEvictedFirst() {
+		Collect c = new Collect();
+		SlabCombinerStore<Long> store = new SlabCombinerStore<Long>(new Sum(), 3, 60000, 1024, c);
+
+		add(store, 1, 1);
+		add(store, 2, 1);
+		add(store, 3, 1);
+		add(store, 1, 1);
+		add(store, 4, 1);
+
+		assertEquals(1, c.count);
+		assertEquals(Long.valueOf(1), c.seen.get(new IntWritable(2)));
+	}
+
+	public void testReusedKeyInstance() {
+		Collect c = new Collect();
+		SlabCombinerStore<Long> store = new SlabCombinerStore<Long>(new Sum(), 10, 60000, 1024, c);
+
+		// One writable refilled for every record, as the readers do.
+		IntWritable key = new IntWritable();
+		for (int i = 0; i < 30; i++) {
+			key.set(i % 3);
+			store.put(key, store.get(key) + 1);
+		}
+		assertEquals(3, store.size());
+
+		store.invalidateAll();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Long.valueOf(10), c.seen.get(new IntWritable(i)));
+		}
+	}
+
+	public void testExpiry() throws Exception {
+		Collect c = new Collect();
+		SlabCombinerStore<Long> store = new SlabCombinerStore<Long>(new Sum(), 10, 0, 1024, c);
+
+		add(store, 1, 5);
+		store.cleanUp();
+		assertEquals(0, store.size());
+		assertEquals(Long.valueOf(5), c.seen.get(new IntWritable(1)));
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import org.apache.pig.piggybank.squeal.backend.storm.state.TinyLFUCache;
+
+import junit.framework.TestCase;
+
+public class TestTinyLFUCache extends TestCase {
+
+	static boolean touch(TinyLFUCache<Integer, Integer> c, int k) {
+		if (c.containsKey(k)) {
+			c.get(k);
+			return true;
+		}
+		c.put(k, k);
+		return false;
+	}
+
+	public void testScanKeepsHotKeys() {
+		TinyLFUCache<Integer, Integer> c = new TinyLFUCache<Integer, Integer>(100);
+		// Warm up a hot set that fits.
+		for (int round = 0; round < 10; round++) {
+			for (int k = 0; k < 50; k++) {
+				touch(c, k);
+			}
+		}
+
+		// A scan of one-off keys, several times the cache size.
+		for (int k = 1000; k < 2000; k++) {
+			touch(c, k);
+		}
+		assertTrue(c.size() <= 100);
+
+		int hits = 0;
+		for (int k = 0; k < 50; k++) {
+			if (touch(c, k)) {
+				hits++;
+			}
+		}
+		assertEquals(50, hits);
+	}
+
+	public void testNullValues() {
+		TinyLFUCache<Integer, Integer> c = new TinyLFUCache<Integer, Integer>(10);
+		c.put(1, null);
+		assertTrue(c.containsKey(1));
+		assertNull(c.get(1));
+		assertEquals(1, c.size());
+	}
+}
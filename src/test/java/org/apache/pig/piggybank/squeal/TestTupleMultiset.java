@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.pig.piggybank.squeal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.piggybank.squeal.backend.storm.state.TupleMultiset;
+
+import junit.framework.TestCase;
+
+public class TestTupleMultiset extends TestCase {
+
+	static byte[] key(int i) {
+		return ("tuple-" + i).getBytes();
+	}
+
+	static int count(TupleMultiset m, int i) {
+		// Adding zero is a lookup.
+		byte[] k = key(i);
+		return m.add(k, 0, k.length, 0);
+	}
+
+	static Map<Integer, Integer> contents(TupleMultiset m, int keys) {
+		Map<Integer, Integer> ret = new HashMap<Integer, Integer>();
+		for (int i = 0; i < keys; i++) {
+			int c = count(m, i);
+			if (c != 0) {
+				ret.put(i, c);
+			}
+		}
+		return ret;
+	}
+
+	public void testCounts() {
+		TupleMultiset m = new TupleMultiset();
+		byte[] a = key(1);
+		assertEquals(2, m.add(a, 0, a.length, 2));
+		assertEquals(1, m.add(a, 0, a.length, -1));
+		assertEquals(1, m.size());
+
+		// Retractions ahead of their tuple are kept.
+		byte[] b = key(2);
+		assertEquals(-1, m.add(b, 0, b.length, -1));
+		assertEquals(2, m.size());
+
+		assertEquals(0, m.add(a, 0, a.length, -1));
+		assertEquals(1, m.size());
+		assertEquals(-1, m.set(b, 0, b.length, 0));
+		assertTrue(m.isEmpty());
+	}
+
+	public void testAgainstMap() throws Exception {
+		Random r = new Random(17);
+		TupleMultiset m = new TupleMultiset();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+		for (int n = 0; n < 100000; n++) {
+			int i = r.nextInt(500);
+			int delta = r.nextInt(3) - 1;
+			byte[] k = key(i);
+			m.add(k, 0, k.length, delta);
+
+			Integer c = expected.get(i);
+			int now = (c == null ? 0 : c) + delta;
+			if (now == 0) {
+				expected.remove(i);
+			} else {
+				expected.put(i, now);
+			}
+		}
+		assertEquals(expected.size(), m.size());
+		assertEquals(expected, contents(m, 500));
+
+		// Copies and round trips leave the counts alone.
+		TupleMultiset copy = new TupleMultiset(m);
+		assertEquals(expected, contents(copy, 500));
+
+		DataOutputBuffer out = new DataOutputBuffer();
+		m.write(out);
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		TupleMultiset read = new TupleMultiset();
+		read.readFields(in);
+		assertEquals(expected, contents(read, 500));
+
+		// Summing into the copy doesn't touch the original.
+		copy.addAll(m);
+		assertEquals(expected, contents(m, 500));
+		for (Map.Entry<Integer, Integer> ent : expected.entrySet()) {
+			assertEquals(2 * ent.getValue(), count(copy, ent.getKey()));
+		}
+	}
+
+	static NullableTuple withMapAndBag(String... keys) {
+		// The map and the bag fill up in the order given.
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		DataBag bag = BagFactory.getInstance().newDefaultBag();
+		for (String k : keys) {
+			m.put(k, k.length());
+			bag.add(TupleFactory.getInstance().newTuple(Arrays.<Object>asList(k)));
+		}
+		Tuple t = TupleFactory.getInstance().newTuple(Arrays.<Object>asList("word", m, bag));
+		return new NullableTuple(t);
+	}
+
+	public void testMapFieldRetraction() {
+		TupleMultiset m = new TupleMultiset();
+		NullableTuple a = withMapAndBag("a", "bb", "ccc");
+		NullableTuple b = withMapAndBag("ccc", "a", "bb");
+		assertEquals(a.getValueAsPigType(), b.getValueAsPigType());
+
+		// Built in another order, the retraction still cancels the tuple.
+		assertEquals(2, m.add(a, 2));
+		assertEquals(2, m.count(b));
+		assertEquals(1, m.add(b, -1));
+		assertEquals(1, m.size());
+		for (int e = 0; e < m.entries(); e++) {
+			if (m.countAt(e) != 0) {
+				assertEquals(a.getValueAsPigType(), m.tupleAt(e).getValueAsPigType());
+			}
+		}
+		assertEquals(0, m.add(b, -1));
+		assertTrue(m.isEmpty());
+	}
+}